@@ -0,0 +1,24 @@
+package com.hmdp.config;
+
+import com.hmdp.service.IShopService;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+/**
+ * 启动时从数据库加载布隆过滤器
+ * @author king
+ */
+@Component
+public class BloomFilterInitializer implements ApplicationRunner {
+
+    @Resource
+    private IShopService shopService;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        shopService.loadBloomFilter();
+    }
+}
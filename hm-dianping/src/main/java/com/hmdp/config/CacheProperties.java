@@ -0,0 +1,257 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 缓存相关配置,对应 application.yaml 中的 hmdp.cache
+ * @author king
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.cache")
+public class CacheProperties {
+
+    /**
+     * 写缓存使用的编解码器: binary(默认) 或 json,读取时两种格式都能识别
+     */
+    private String codec = "binary";
+
+    /**
+     * 概率提前刷新的系数beta,越大越早刷新,1.0为论文推荐值
+     */
+    private double earlyRefreshBeta = 1.0;
+
+    /**
+     * 本地一级缓存(near cache)
+     */
+    private Near near = new Near();
+
+    /**
+     * 布隆过滤器,防缓存穿透
+     */
+    private Bloom bloom = new Bloom();
+
+    /**
+     * 按key前缀的TTL策略,防止大量key同时过期(缓存雪崩)
+     */
+    private List<TtlPolicy> ttlPolicies = new ArrayList<>();
+
+    /**
+     * 缓存预热
+     */
+    private Warmup warmup = new Warmup();
+
+    /**
+     * 热点key探测
+     */
+    private HotKey hotKey = new HotKey();
+
+    /**
+     * 缓存失效发件箱
+     */
+    private Outbox outbox = new Outbox();
+
+    /**
+     * 逻辑过期数据的定时提前刷新
+     */
+    private RefreshAhead refreshAhead = new RefreshAhead();
+
+    /**
+     * 大value压缩
+     */
+    private Compression compression = new Compression();
+
+    @Data
+    public static class Near {
+        /**
+         * 是否开启本地缓存
+         */
+        private boolean enabled = false;
+        /**
+         * 每个key前缀一份配置,没有配置的前缀不走本地缓存
+         */
+        private List<NearSpec> specs = new ArrayList<>();
+    }
+
+    @Data
+    public static class NearSpec {
+        /**
+         * key前缀,例如 cache:shop:
+         */
+        private String prefix;
+        /**
+         * 最大条目数,超出按LRU淘汰
+         */
+        private int maxSize = 1000;
+        /**
+         * 本地存活时间,从写入开始计算
+         */
+        private Duration ttl = Duration.ofSeconds(10);
+    }
+
+    @Data
+    public static class Bloom {
+        /**
+         * 是否开启布隆过滤器
+         */
+        private boolean enabled = false;
+        /**
+         * 每个key前缀一个过滤器
+         */
+        private List<BloomSpec> specs = new ArrayList<>();
+        /**
+         * 重新估算误判率的间隔,估算要对整个bitmap执行BITCOUNT,不在每次采集指标时执行
+         */
+        private Duration fppRefresh = Duration.ofMinutes(5);
+    }
+
+    @Data
+    public static class BloomSpec {
+        /**
+         * key前缀,例如 cache:shop:
+         */
+        private String prefix;
+        /**
+         * 预计元素个数
+         */
+        private long expectedInsertions = 1_000_000L;
+        /**
+         * 期望误判率
+         */
+        private double fpp = 0.01;
+    }
+
+    @Data
+    public static class TtlPolicy {
+        /**
+         * key前缀
+         */
+        private String prefix;
+        /**
+         * 随机抖动比例,0.1表示TTL在 [0.9, 1.1] 倍之间随机
+         */
+        private double jitter = 0.1;
+        /**
+         * 每秒最多安排多少个key过期,超出的顺延到后面的秒,0表示不限制
+         */
+        private int maxExpiriesPerSecond = 0;
+    }
+
+    @Data
+    public static class Warmup {
+        /**
+         * 启动时是否预热,预热完成后才对外就绪
+         */
+        private boolean onStartup = true;
+        /**
+         * 每批(一个pipeline)写入的条数,并行度由cache-warmup线程池决定
+         */
+        private int batchSize = 500;
+    }
+
+    @Data
+    public static class HotKey {
+        /**
+         * 是否开启热点key探测
+         */
+        private boolean enabled = false;
+        /**
+         * 采样率,0.1表示每10次访问统计1次
+         */
+        private double sampleRate = 0.1;
+        /**
+         * 统计窗口
+         */
+        private Duration window = Duration.ofSeconds(10);
+        /**
+         * 一个窗口内估计访问次数达到多少算热点
+         */
+        private long threshold = 5000;
+        /**
+         * 对外展示的top-K个数
+         */
+        private int topK = 20;
+        /**
+         * 热点key本地副本的存活时间,过期后下次访问从redis重新加载
+         */
+        private Duration pinTtl = Duration.ofSeconds(3);
+        /**
+         * 最多钉住多少个热点key
+         */
+        private int maxPinned = 1000;
+        /**
+         * count-min sketch的行数
+         */
+        private int sketchDepth = 4;
+        /**
+         * count-min sketch每行的计数器个数
+         */
+        private int sketchWidth = 4096;
+    }
+
+    @Data
+    public static class Outbox {
+        /**
+         * 每批处理的记录数
+         */
+        private int batchSize = 500;
+        /**
+         * 定时轮询间隔
+         */
+        private Duration pollInterval = Duration.ofSeconds(1);
+        /**
+         * 延迟双删的间隔,精度为秒
+         */
+        private Duration doubleDeleteDelay = Duration.ofSeconds(1);
+        /**
+         * 失败重试的最大退避时间
+         */
+        private Duration maxBackoff = Duration.ofSeconds(60);
+    }
+
+    @Data
+    public static class Compression {
+        /**
+         * 是否开启压缩,关闭后仍然能读取已经压缩的数据
+         */
+        private boolean enabled = false;
+        /**
+         * 编码后达到多少字节才压缩,小value压缩收益低
+         */
+        private int minSize = 1024;
+    }
+
+    @Data
+    public static class RefreshAhead {
+        /**
+         * 是否开启
+         */
+        private boolean enabled = false;
+        /**
+         * 扫描间隔
+         */
+        private Duration interval = Duration.ofSeconds(1);
+        /**
+         * 提前多久刷新
+         */
+        private Duration lead = Duration.ofSeconds(30);
+        /**
+         * 每批查库和写回的条数
+         */
+        private int batchSize = 200;
+        /**
+         * 每秒最多刷新多少个key(单个实例),超出的留到下一秒
+         */
+        private int maxPerSecond = 500;
+        /**
+         * 领取后多久没刷新完可以被重新领取
+         */
+        private Duration claimTimeout = Duration.ofSeconds(30);
+    }
+}
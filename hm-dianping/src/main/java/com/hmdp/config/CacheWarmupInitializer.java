@@ -0,0 +1,30 @@
+package com.hmdp.config;
+
+import com.hmdp.service.ICacheWarmupService;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+
+/**
+ * 启动时同步预热缓存.ApplicationRunner在就绪状态(ReadinessState.ACCEPTING_TRAFFIC)发布之前执行,
+ * 预热完成之前负载均衡不会把流量打过来
+ * @author king
+ */
+@Component
+public class CacheWarmupInitializer implements ApplicationRunner {
+
+    @Resource
+    private ICacheWarmupService cacheWarmupService;
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (cacheProperties.getWarmup().isOnStartup()) {
+            cacheWarmupService.warmupShops();
+        }
+    }
+}
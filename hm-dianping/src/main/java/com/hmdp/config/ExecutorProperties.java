@@ -0,0 +1,40 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 后台线程池配置,对应 application.yaml 中的 hmdp.executors,每种任务一个池
+ * @author king
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp")
+public class ExecutorProperties {
+
+    /**
+     * 线程池名 -> 配置,没有配置的线程池使用Pool的默认值
+     */
+    private Map<String, Pool> executors = new LinkedHashMap<>();
+
+    @Data
+    public static class Pool {
+        /**
+         * 线程数
+         */
+        private int threads = 4;
+        /**
+         * 排队上限,超出直接拒绝;0表示不排队,没有空闲线程就拒绝
+         */
+        private int queueCapacity = 100;
+        /**
+         * 空闲线程存活时间
+         */
+        private Duration keepAlive = Duration.ofSeconds(60);
+    }
+}
@@ -1,6 +1,7 @@
 package com.hmdp.config;
 
 import cn.hutool.log.Log;
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
 import org.springframework.context.annotation.Configuration;
@@ -18,6 +19,9 @@ public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private AdminProperties adminProperties;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         //执行顺序按照注册顺序
@@ -33,5 +37,8 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/upload/**",
                         "/voucher/**"
                 ).order(1);
+        //运维接口只允许管理员调用
+        registry.addInterceptor(new AdminInterceptor(adminProperties))
+                .addPathPatterns("/admin/**").order(2);
     }
 }
@@ -0,0 +1,95 @@
+package com.hmdp.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+
+/**
+ * 秒杀相关配置,对应 application.yaml 中的 hmdp.seckill.
+ * 消费者个数和处理通道个数分别是 hmdp.executors 里 order-consumer 和 order-lane 的线程数
+ * @author king
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "hmdp.seckill")
+public class SeckillProperties {
+
+    /**
+     * 新建秒杀券时默认的库存分桶数,1表示不分桶;超热门的券可以在创建时单独指定
+     */
+    private int stockBuckets = 1;
+
+    /**
+     * 本地售罄标记的有效期,过期后下一个请求重新执行一次脚本确认,防止补库存的通知丢失
+     */
+    private Duration soldOutRecheck = Duration.ofSeconds(10);
+
+    /**
+     * 本地缓存的秒杀券个数上限,redis里的券信息丢失时用来补回去
+     */
+    private int voucherCacheSize = 1000;
+
+    /**
+     * 本地缓存的秒杀券的有效期,券信息在其它实例上修改后最多这么久失效;不存在的券同样缓存这么久
+     */
+    private Duration voucherCacheTtl = Duration.ofMinutes(1);
+
+    /**
+     * 订单消费者
+     */
+    private Consumer consumer = new Consumer();
+
+    @Data
+    public static class Consumer {
+        /**
+         * 消费者名前缀,实际名字为 前缀-进程号@主机名-序号,多实例部署时不会重复
+         */
+        private String name = "c";
+        /**
+         * 每次XREADGROUP读取的消息数
+         */
+        private int readCount = 100;
+        /**
+         * 没有消息时XREADGROUP的阻塞时间
+         */
+        private Duration block = Duration.ofSeconds(2);
+        /**
+         * 一个消费者负责多个stream时轮询读取,一轮都没有消息后等待的时间
+         */
+        private Duration pollInterval = Duration.ofMillis(100);
+        /**
+         * 重新读取分桶stream列表的间隔
+         */
+        private Duration streamRefresh = Duration.ofSeconds(10);
+        /**
+         * 每个处理通道排队的消息数,满了之后消费者停止读取
+         */
+        private int laneQueueCapacity = 256;
+        /**
+         * 每个处理通道一次写库的最大订单数
+         */
+        private int batchSize = 100;
+        /**
+         * 回收超时未确认消息的间隔
+         */
+        private Duration reclaimInterval = Duration.ofSeconds(5);
+        /**
+         * 每轮最多检查的pending消息数
+         */
+        private int reclaimCount = 100;
+        /**
+         * 第一次重试前消息至少空闲多久,之后每投递一次翻倍
+         */
+        private Duration reclaimMinIdle = Duration.ofSeconds(30);
+        /**
+         * 重试间隔上限
+         */
+        private Duration reclaimMaxIdle = Duration.ofMinutes(10);
+        /**
+         * 最多投递次数,超过后转入死信stream
+         */
+        private int maxDeliveries = 5;
+    }
+}
@@ -0,0 +1,46 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.ICacheWarmupService;
+import com.hmdp.utils.HotKeyDetector;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * 缓存运维接口,只有 hmdp.admin.user-ids 里的用户可以调用,见AdminInterceptor
+ * @author king
+ */
+@RestController
+@RequestMapping("/admin/cache")
+public class CacheAdminController {
+
+    @Resource
+    private ICacheWarmupService cacheWarmupService;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    /**
+     * 手动预热店铺缓存,例如活动开始前
+     */
+    @PostMapping("/warmup")
+    public Result warmup() {
+        long count = cacheWarmupService.warmupShops();
+        if (count < 0) {
+            return Result.fail("预热正在进行中");
+        }
+        return Result.ok(count);
+    }
+
+    /**
+     * 上一个统计窗口的热点key
+     */
+    @GetMapping("/hot-keys")
+    public Result hotKeys() {
+        return Result.ok(hotKeyDetector.topK());
+    }
+}
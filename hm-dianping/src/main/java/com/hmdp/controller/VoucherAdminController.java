@@ -0,0 +1,34 @@
+package com.hmdp.controller;
+
+import com.hmdp.dto.Result;
+import com.hmdp.service.IVoucherService;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * 优惠券运维接口,只有 hmdp.admin.user-ids 里的用户可以调用,见AdminInterceptor
+ * @author king
+ */
+@RestController
+@RequestMapping("/admin/voucher")
+public class VoucherAdminController {
+
+    @Resource
+    private IVoucherService voucherService;
+
+    /**
+     * 秒杀券补库存
+     * @param id 优惠券id
+     * @param quantity 增加的库存
+     * @return 无
+     */
+    @PutMapping("/seckill/{id}/stock/{quantity}")
+    public Result restockSeckillVoucher(@PathVariable("id") Long id, @PathVariable("quantity") Integer quantity) {
+        voucherService.restockSeckillVoucher(id, quantity);
+        return Result.ok();
+    }
+}
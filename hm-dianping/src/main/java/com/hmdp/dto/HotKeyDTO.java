@@ -0,0 +1,20 @@
+package com.hmdp.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class HotKeyDTO {
+    private String key;
+    /**
+     * 一个统计窗口内的估计访问次数(已按采样率还原)
+     */
+    private Long count;
+    /**
+     * 是否已经钉在本地
+     */
+    private Boolean pinned;
+}
@@ -0,0 +1,15 @@
+package com.hmdp.mapper;
+
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import com.hmdp.entity.CacheOutbox;
+
+/**
+ * <p>
+ *  Mapper 接口
+ * </p>
+ *
+ * @author king
+ */
+public interface CacheOutboxMapper extends BaseMapper<CacheOutbox> {
+
+}
@@ -2,6 +2,10 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Collection;
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +17,18 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 多行插入,一条INSERT写入一批订单
+     *
+     * @return 插入的行数
+     * @throws org.springframework.dao.DuplicateKeyException 同一用户同一张券已有订单
+     */
+    int insertBatch(@Param("orders") List<VoucherOrder> orders);
+
+    /**
+     * 这些用户里已经买过这张券的
+     *
+     * @return 已有订单的用户id
+     */
+    List<Long> queryPurchasedUsers(@Param("voucherId") Long voucherId, @Param("userIds") Collection<Long> userIds);
 }
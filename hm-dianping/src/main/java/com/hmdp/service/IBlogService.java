@@ -18,6 +18,11 @@ public interface IBlogService extends IService<Blog> {
 
     Result queryBlogByid(Integer id);
 
+    /**
+     * 查询笔记本身(不含作者和点赞状态),走缓存,不存在返回null
+     */
+    Blog queryBlog(Long id);
+
     Result likeBlog(Long id);
 
     Result queryBlogLikes(Integer id);
@@ -0,0 +1,30 @@
+package com.hmdp.service;
+
+import com.baomidou.mybatisplus.extension.service.IService;
+import com.hmdp.entity.CacheOutbox;
+
+import java.util.Collection;
+
+/**
+ * <p>
+ *  缓存失效发件箱
+ * </p>
+ *
+ * @author king
+ */
+public interface ICacheOutboxService extends IService<CacheOutbox> {
+
+    /**
+     * 在当前事务中登记要删除的缓存key,事务提交后由relay异步删除
+     *
+     * @param keys 缓存key
+     */
+    void record(Collection<String> keys);
+
+    /**
+     * 处理一批到期的发件箱记录
+     *
+     * @return 处理的记录数
+     */
+    int relay();
+}
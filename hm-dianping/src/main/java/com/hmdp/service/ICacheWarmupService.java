@@ -0,0 +1,15 @@
+package com.hmdp.service;
+
+/**
+ * 缓存预热
+ * @author king
+ */
+public interface ICacheWarmupService {
+
+    /**
+     * 把全部店铺以逻辑过期的方式写入缓存,同一时间只允许一次预热
+     *
+     * @return 写入的店铺数,已经有预热在进行时返回-1
+     */
+    long warmupShops();
+}
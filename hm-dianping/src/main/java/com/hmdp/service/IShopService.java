@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +18,19 @@ public interface IShopService extends IService<Shop> {
 
   Result queryById(Long id);
 
+  /**
+   * 异步查询店铺,redis和数据库等待期间不占用请求线程
+   */
+  CompletableFuture<Result> queryByIdAsync(Long id);
+
   Result update(Shop shop);
+
+  Result queryShopByType(Integer typeId, Integer current);
+
+  Result saveShop(Shop shop);
+
+  /**
+   * 把tb_shop中所有id写入布隆过滤器
+   */
+  void loadBloomFilter();
 }
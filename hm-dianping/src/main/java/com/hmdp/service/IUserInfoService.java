@@ -13,4 +13,9 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface IUserInfoService extends IService<UserInfo> {
 
+    /**
+     * 根据用户id查询详情,走缓存,不存在返回null
+     */
+    UserInfo queryByUserId(Long userId);
+
 }
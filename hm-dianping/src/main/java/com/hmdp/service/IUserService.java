@@ -3,9 +3,12 @@ package com.hmdp.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 
 import javax.servlet.http.HttpSession;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * <p>
@@ -20,4 +23,16 @@ public interface IUserService extends IService<User> {
     Result sendCode(String phone, HttpSession session);
 
     Result login(LoginFormDTO loginForm, HttpSession session);
+
+    /**
+     * 批量查询用户(走缓存)
+     * @param ids 用户id
+     * @return id -> 用户,顺序与ids一致
+     */
+    Map<Long, UserDTO> queryUserDTOByIds(Collection<Long> ids);
+
+    /**
+     * 根据id查询用户,走缓存,不存在返回null
+     */
+    UserDTO queryUserDTOById(Long id);
 }
@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -17,4 +19,12 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
     Result seckillVoucher(Long voucherId);
 
     void createVoucher(VoucherOrder voucherOrder);
+
+    /**
+     * 一个事务写入一批订单:先去掉已经存在的订单,每张券扣一次库存、一条INSERT插入.
+     * 去重之后仍然插入失败(例如其它实例同时写入了同一个订单)时抛出异常、整批回滚,由调用方逐条调用createVoucher
+     *
+     * @return 实际写入的订单数
+     */
+    int createVoucherBatch(List<VoucherOrder> voucherOrders);
 }
@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -14,7 +16,18 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface IVoucherService extends IService<Voucher> {
 
-    Result queryVoucherOfShop(Long shopId);
+    List<Voucher> queryVoucherOfShop(Long shopId);
+
+    void addVoucher(Voucher voucher);
 
     void addSeckillVoucher(Voucher voucher);
+
+    void restockSeckillVoucher(Long voucherId, Integer quantity);
+
+    /**
+     * 查询秒杀券,带上秒杀开始、结束时间;本地缓存,查不到的也缓存
+     *
+     * @return 不存在或不是秒杀券时为null
+     */
+    Voucher querySeckillVoucher(Long voucherId);
 }
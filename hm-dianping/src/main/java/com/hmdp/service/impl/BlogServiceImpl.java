@@ -12,18 +12,24 @@ import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.HmdpCacheEvict;
+import com.hmdp.utils.HmdpCached;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_TTL;
 
 /**
  * <p>
@@ -41,6 +47,14 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 自己的代理,本类内部调用带缓存注解的方法时通过它调用才会走切面;@Lazy避免创建时的循环依赖
+     */
+    @Lazy
+    @Resource
+    private IBlogService self;
+
     @Override
     public Result queryHotBlog(Integer current) {
         // 根据用户查询
@@ -49,9 +63,15 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
+        // 批量查询用户
+        List<Long> userIds = records.stream().map(Blog::getUserId).collect(Collectors.toList());
+        Map<Long, UserDTO> users = userService.queryUserDTOByIds(userIds);
         records.forEach(blog -> {
-            this.queryBlogUser(blog);
+            UserDTO user = users.get(blog.getUserId());
+            if (user != null) {
+                blog.setName(user.getNickName());
+                blog.setIcon(user.getIcon());
+            }
             this.isBlogLiked(blog);
         });
         return Result.ok(records);
@@ -61,14 +81,23 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
     @Override
     public Result queryBlogByid(Integer id) {
-        Blog blog = getById(id);
-        if (blog == null){
+        //通过代理调用才会走缓存
+        Blog cached = self.queryBlog(id.longValue());
+        if (cached == null){
             return Result.fail("笔记不存在");
         }
+        //缓存的对象可能被多个请求共用,复制一份再填充作者和点赞状态
+        Blog blog = BeanUtil.copyProperties(cached, Blog.class);
         queryBlogUser(blog);
         //查询blog是否被当前用户点赞
         isBlogLiked(blog);
-        return null;
+        return Result.ok(blog);
+    }
+
+    @Override
+    @HmdpCached(prefix = CACHE_BLOG_KEY, ttl = CACHE_BLOG_TTL)
+    public Blog queryBlog(Long id) {
+        return getById(id);
     }
 
     private void isBlogLiked(Blog blog) {
@@ -86,6 +115,7 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     }
 
     @Override
+    @HmdpCacheEvict(prefix = CACHE_BLOG_KEY)
     public Result likeBlog(Long id) {
         //1.获取用户
         Long userId = UserHolder.getUser().getId();
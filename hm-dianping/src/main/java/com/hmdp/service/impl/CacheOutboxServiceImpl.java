@@ -0,0 +1,181 @@
+package com.hmdp.service.impl;
+
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.config.CacheProperties;
+import com.hmdp.entity.CacheOutbox;
+import com.hmdp.mapper.CacheOutboxMapper;
+import com.hmdp.service.ICacheOutboxService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.ExecutorRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * <p>
+ *  缓存失效发件箱.
+ *  业务更新时在同一个事务里写发件箱,事务提交后relay异步批量删除缓存:
+ *  第一次删除后记录变成"已删除一次",延迟一段时间再删第二次(延迟双删),
+ *  防止提交前读到旧数据的请求在第一次删除之后又把旧数据写回缓存.
+ *  删除失败的记录按指数退避重试,直到成功为止;多实例同时处理同一条记录也没关系,删除是幂等的.
+ *  relay在有界的 cache-outbox 线程池里执行,连续提交的唤醒会合并,最多只有一个待执行的任务
+ * </p>
+ *
+ * @author king
+ */
+@Slf4j
+@Service
+public class CacheOutboxServiceImpl extends ServiceImpl<CacheOutboxMapper, CacheOutbox> implements ICacheOutboxService {
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    @Resource
+    private ExecutorRegistry executorRegistry;
+
+    private final AtomicBoolean relaying = new AtomicBoolean(false);
+
+    /**
+     * 线程池里是否已经有一个还没开始执行的relay任务
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    @Override
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void record(Collection<String> keys) {
+        List<CacheOutbox> rows = keys.stream().distinct()
+                .map(key -> new CacheOutbox().setCacheKey(key)
+                        .setStatus(CacheOutbox.STATUS_PENDING).setRetryCount(0))
+                .collect(Collectors.toList());
+        saveBatch(rows);
+        //事务提交后马上处理一次,不用等定时轮询;回滚时发件箱也一起回滚,不会误删
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                wakeUp();
+            }
+        });
+    }
+
+    /**
+     * 定时轮询兜底,处理提交后触发失败、重启前没处理完、等待双删以及等待重试的记录
+     */
+    @Scheduled(fixedDelayString = "#{@cacheProperties.outbox.pollInterval.toMillis()}")
+    public void poll() {
+        wakeUp();
+    }
+
+    @Override
+    public int relay() {
+        if (!relaying.compareAndSet(false, true)) {
+            return 0;
+        }
+        try {
+            int batchSize = cacheProperties.getOutbox().getBatchSize();
+            int total = 0;
+            while (true) {
+                //1.按id顺序取一批到期的记录
+                List<CacheOutbox> rows = query()
+                        .apply("next_retry_time <= NOW()")
+                        .orderByAsc("id")
+                        .last("LIMIT " + batchSize)
+                        .list();
+                if (rows.isEmpty()) {
+                    break;
+                }
+                process(rows);
+                total += rows.size();
+                if (rows.size() < batchSize) {
+                    break;
+                }
+            }
+            return total;
+        } finally {
+            relaying.set(false);
+        }
+    }
+
+    private void process(List<CacheOutbox> rows) {
+        CacheProperties.Outbox outbox = cacheProperties.getOutbox();
+        Set<String> keys = new LinkedHashSet<>();
+        List<Long> ids = new ArrayList<>(rows.size());
+        List<Long> pendingIds = new ArrayList<>();
+        List<Long> doneIds = new ArrayList<>();
+        for (CacheOutbox row : rows) {
+            keys.add(row.getCacheKey());
+            ids.add(row.getId());
+            if (row.getStatus() == CacheOutbox.STATUS_PENDING) {
+                pendingIds.add(row.getId());
+            } else {
+                doneIds.add(row.getId());
+            }
+        }
+        //2.一次性删除这批key,并通知各实例清本地缓存
+        try {
+            cacheClient.evictAll(keys);
+        } catch (RuntimeException e) {
+            //3.失败,指数退避后重试
+            log.warn("缓存失效失败,{}条记录稍后重试", rows.size(), e);
+            update().setSql("retry_count = retry_count + 1, next_retry_time = DATE_ADD(NOW(), INTERVAL LEAST(POW(2, retry_count), "
+                            + outbox.getMaxBackoff().getSeconds() + ") SECOND)")
+                    .in("id", ids)
+                    .update();
+            return;
+        }
+        //4.第一次删除成功,等待延迟双删,到期后由定时轮询处理
+        if (!pendingIds.isEmpty()) {
+            long delaySeconds = Math.max(1, outbox.getDoubleDeleteDelay().getSeconds());
+            update().set("status", CacheOutbox.STATUS_DELETED_ONCE)
+                    .setSql("next_retry_time = DATE_ADD(NOW(), INTERVAL " + delaySeconds + " SECOND)")
+                    .in("id", pendingIds)
+                    .update();
+        }
+        //5.第二次删除成功,记录处理完毕
+        if (!doneIds.isEmpty()) {
+            removeByIds(doneIds);
+        }
+    }
+
+    private void wakeUp() {
+        //已经有待执行的任务,它开始执行后会处理到这次提交的记录
+        if (!scheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executorRegistry.executor(ExecutorRegistry.CACHE_OUTBOX).execute(() -> {
+                //先清标记再处理,处理期间提交的记录会再排一个任务
+                scheduled.set(false);
+                relaySafely();
+            });
+        } catch (RejectedExecutionException e) {
+            //线程池已满或已关闭,交给下一次定时轮询
+            scheduled.set(false);
+            log.debug("触发发件箱处理失败", e);
+        }
+    }
+
+    private void relaySafely() {
+        try {
+            relay();
+        } catch (RuntimeException e) {
+            log.error("处理缓存失效发件箱异常", e);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.config.CacheProperties;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.ICacheWarmupService;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.ExecutorRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.ibatis.cursor.Cursor;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TTL;
+
+/**
+ * 缓存预热:用游标流式读取tb_shop的id,按批交给cache-warmup线程池并行写入redis.
+ * 每批先读版本号再按id查库,带版本号写回,预热期间被更新、删除过缓存的店铺不会被旧数据覆盖.
+ * 读id是单线程顺序读,查库和写redis是多线程pipeline;用信号量把在途批次数限制在线程数加排队上限,
+ * 读得比写得快时读线程会阻塞,线程池不会拒绝,内存里的批数也有上限
+ * @author king
+ */
+@Slf4j
+@Service
+public class CacheWarmupServiceImpl implements ICacheWarmupService {
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private CacheProperties cacheProperties;
+
+    @Resource
+    private PlatformTransactionManager transactionManager;
+
+    @Resource
+    private ExecutorRegistry executorRegistry;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    @Override
+    public long warmupShops() {
+        if (!running.compareAndSet(false, true)) {
+            log.warn("店铺缓存预热正在进行,忽略本次请求");
+            return -1;
+        }
+        try {
+            return doWarmupShops();
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private long doWarmupShops() {
+        CacheProperties.Warmup warmup = cacheProperties.getWarmup();
+        int batchSize = warmup.getBatchSize();
+        ExecutorService executor = executorRegistry.executor(ExecutorRegistry.CACHE_WARMUP);
+        int capacity = executorRegistry.capacity(ExecutorRegistry.CACHE_WARMUP);
+        Semaphore inFlight = new Semaphore(capacity);
+        AtomicLong written = new AtomicLong();
+        AtomicInteger failedBatches = new AtomicInteger();
+        long begin = System.currentTimeMillis();
+
+        //1.只读事务内打开游标,事务结束游标随之关闭
+        TransactionTemplate template = new TransactionTemplate(transactionManager);
+        template.setReadOnly(true);
+        long read = template.execute(status -> {
+            long count = 0;
+            List<Long> batch = new ArrayList<>(batchSize);
+            try (Cursor<Long> cursor = shopMapper.scanIds()) {
+                for (Long id : cursor) {
+                    batch.add(id);
+                    count++;
+                    if (batch.size() >= batchSize) {
+                        //2.攒满一批交给线程池
+                        submit(executor, inFlight, batch, written, failedBatches, begin);
+                        batch = new ArrayList<>(batchSize);
+                    }
+                }
+            } catch (IOException e) {
+                log.warn("关闭店铺游标失败", e);
+            }
+            if (!batch.isEmpty()) {
+                submit(executor, inFlight, batch, written, failedBatches, begin);
+            }
+            return count;
+        });
+
+        //3.拿回全部许可,说明所有批次都写完了
+        inFlight.acquireUninterruptibly(capacity);
+        long cost = Math.max(1, System.currentTimeMillis() - begin);
+        log.info("店铺缓存预热完成: 读取{}条, 写入{}条(其余期间被更新过或已删除), 失败{}批, 耗时{}ms, {}条/秒",
+                read, written.get(), failedBatches.get(), cost, written.get() * 1000 / cost);
+        return written.get();
+    }
+
+    private void submit(ExecutorService executor, Semaphore inFlight, List<Long> batch,
+                        AtomicLong written, AtomicInteger failedBatches, long begin) {
+        inFlight.acquireUninterruptibly();
+        try {
+            executor.execute(() -> {
+                try {
+                    int count = cacheClient.loadWithLogicalExpireBatch(CACHE_SHOP_KEY, batch, this::queryShopMap,
+                            CACHE_SHOP_TTL, TimeUnit.MINUTES);
+                    long total = written.addAndGet(count);
+                    long cost = Math.max(1, System.currentTimeMillis() - begin);
+                    log.debug("店铺缓存预热进度: 已写入{}条, {}条/秒", total, total * 1000 / cost);
+                } catch (RuntimeException e) {
+                    failedBatches.incrementAndGet();
+                    log.error("店铺缓存预热批次写入失败, 首个id={}", batch.get(0), e);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    private Map<Long, Shop> queryShopMap(List<Long> ids) {
+        return shopMapper.selectBatchIds(ids).stream().collect(Collectors.toMap(Shop::getId, Function.identity()));
+    }
+}
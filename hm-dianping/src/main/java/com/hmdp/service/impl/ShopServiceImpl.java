@@ -1,31 +1,36 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSON;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
+import com.hmdp.service.ICacheOutboxService;
 import com.hmdp.service.IShopService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.AsyncCacheClient;
+import com.hmdp.utils.BloomFilterRegistry;
 import com.hmdp.utils.CacheClient;
-import com.hmdp.utils.RedisConstants;
-import com.hmdp.utils.RedisData;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.RefreshAheadRegistry;
+import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 
-import java.sql.ClientInfoStatus;
-import java.time.LocalDateTime;
-import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -37,14 +42,37 @@ import static com.hmdp.utils.RedisConstants.*;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
   @Resource
-  private StringRedisTemplate stringRedisTemplate;
+  private CacheClient cacheClient;
 
   @Resource
-  private CacheClient cacheClient;
+  private AsyncCacheClient asyncCacheClient;
+
+  @Resource
+  private BloomFilterRegistry bloomFilterRegistry;
+
+  @Resource
+  private ICacheOutboxService cacheOutboxService;
+
+  @Resource
+  private RefreshAheadRegistry refreshAheadRegistry;
+
+  /**
+   * 加载布隆过滤器时每批读取的id数
+   */
+  private static final int BLOOM_LOAD_BATCH = 5000;
+
+  /**
+   * 店铺用逻辑过期缓存,快过期时由定时任务批量查库提前刷新
+   */
+  @PostConstruct
+  public void registerRefreshAhead() {
+    refreshAheadRegistry.register(CACHE_SHOP_KEY, Long::valueOf, this::queryShopMap, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+  }
 
   @Override
   public Result queryById(Long id) {
@@ -54,14 +82,17 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 //            queryWithPassThrough(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
 
     //互斥锁解决缓存击穿
-    Shop shop = cacheClient.
-            queryWithMutes(CACHE_SHOP_KEY,LOCK_SHOP_KEY,id,Shop.class,this::getById,20L,TimeUnit.SECONDS);
-
+//    Shop shop = cacheClient.
+//            queryWithMutes(CACHE_SHOP_KEY,LOCK_SHOP_KEY,id,Shop.class,this::getById,20L,TimeUnit.SECONDS);
 
-    //逻辑过期解决缓存击穿
+    //概率提前刷新,热点key在过期前被重建
 //    Shop shop = cacheClient.
-//            queryWithLogicalExpire(CACHE_SHOP_KEY,LOCK_SHOP_KEY,id,Shop.class,this::getById,20L,TimeUnit.SECONDS);
-//
+//            queryWithEarlyRefresh(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
+
+    //逻辑过期解决缓存击穿,启动时已经预热,未预热的key第一次访问时加锁加载
+    Shop shop = cacheClient.
+            queryWithLogicalExpire(CACHE_SHOP_KEY,LOCK_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
+
     if (shop==null) {
       return Result.fail("店铺不存在");
     }
@@ -69,162 +100,100 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     return Result.ok(shop);
   }
 
-  private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
-  public Shop queryWithLogicalExpire(Long id){
-    //1.从redis查询商户缓存
-      String shopJson = stringRedisTemplate.opsForValue().get(CACHE_SHOP_KEY + id);
-    //2.判断是否存在
-    if (StrUtil.isBlank(shopJson)){
-      //3.未命中,返回空
-      return null;
-    }
-
-    //4.命中,先把json反序列化成对象
-    RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-    //这里可以使用泛型,我不会
-    JSONObject data = (JSONObject) redisData.getData();
-    Shop shop = JSONUtil.toBean(data, Shop.class);
-    LocalDateTime expireTime = redisData.getExpireTime();
-    //5.判断是否过期
-    if (expireTime.isAfter(LocalDateTime.now())){
-      //5.1.未过期,直接返回店铺信息
-      return shop;
-    }
+  @Override
+  public CompletableFuture<Result> queryByIdAsync(Long id) {
+    //逻辑过期,异步版本
+    return asyncCacheClient.
+            queryWithLogicalExpire(CACHE_SHOP_KEY,LOCK_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES)
+            .thenApply(shop -> shop == null ? Result.fail("店铺不存在") : Result.ok(shop));
+  }
 
-    //5.2.已过期,需要缓存重建
+  @Override
+  public Result queryShopByType(Integer typeId, Integer current) {
+    //1.分页只查id
+    Page<Shop> page = query()
+            .select("id")
+            .eq("type_id", typeId)
+            .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
+    List<Long> ids = page.getRecords().stream().map(Shop::getId).collect(Collectors.toList());
+    //2.批量走缓存,未命中的一次性查库;与queryById一样是逻辑过期格式
+    Map<Long, Shop> shops = cacheClient.queryBatchWithLogicalExpire(CACHE_SHOP_KEY, ids, Shop.class,
+            this::queryShopMap, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+    return Result.ok(new ArrayList<>(shops.values()));
+  }
 
-    //6.缓存重建
+  private Map<Long, Shop> queryShopMap(Collection<Long> ids) {
+    return listByIds(ids).stream().collect(Collectors.toMap(Shop::getId, Function.identity()));
+  }
 
-    //6.1.获取互斥锁
-    String lockKey = LOCK_SHOP_KEY +id;
-    //6.2.判断是否获取成功
-    boolean isLock = tryLock(lockKey);
-    if (isLock){
-      //6.3.成功,开启独立线程实现缓存重建
-      CACHE_REBUILD_EXECUTOR.submit(()->{
+  @Override
+  @Transactional
+  public Result saveShop(Shop shop) {
+    // 写入数据库
+    save(shop);
+    // 事务提交后再加入布隆过滤器,回滚时不会在共用的bitmap里留下不存在的id
+    Long id = shop.getId();
+    TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+      @Override
+      public void afterCommit() {
         try {
-          //重建缓存
-          this.saveShop2Redis(id,20L);
+          bloomFilterRegistry.put(CACHE_SHOP_KEY, id);
         } catch (Exception e) {
-          throw new RuntimeException(e);
-        }finally {
-          //释放锁
-          unlock(lockKey);
+          //店铺已经保存,写入失败时查询会被过滤器拦截,需要重新加载过滤器
+          log.error("店铺{}加入布隆过滤器失败", id, e);
         }
-
-      });
-    }
-
-    //6.4.返回过期的商铺信息
-    return shop;
+      }
+    });
+    return Result.ok(id);
   }
 
-
-  public Shop queryWithMutes(Long id){
-    //1.从redis查询商户缓存
-    String shopJson = stringRedisTemplate.opsForValue().get(CACHE_SHOP_KEY + id);
-    //2.判断是否存在
-    //3.存在,直接返回
-    if (StrUtil.isNotBlank(shopJson)){
-      Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-      return shop;
-    } else if (shopJson!=null){ //判断命中的是否为空值
-      //没命中空值
-      return null;
+  @Override
+  public void loadBloomFilter() {
+    if (!bloomFilterRegistry.hasFilter(CACHE_SHOP_KEY)) {
+      return;
     }
-
-    //4.实现缓存重建
-    //4.1 获取互斥锁
-    String lockKey = "lock:shop:"+id;
-    Shop shop = null;
-    //ctrl+alt+t
-    try {
-      boolean lock = tryLock(lockKey);
-      //4.2 判断是否获取成功
-      if (!lock) {
-        //4.3 失败,休眠并重试
-        Thread.sleep(50);
-        return queryWithMutes(id);
+    long begin = System.currentTimeMillis();
+    long total = 0;
+    long lastId = 0;
+    while (true) {
+      //按id游标分批读取,避免深分页
+      List<Long> ids = query().select("id").gt("id", lastId).orderByAsc("id")
+              .last("LIMIT " + BLOOM_LOAD_BATCH).list()
+              .stream().map(Shop::getId).collect(Collectors.toList());
+      if (ids.isEmpty()) {
+        break;
       }
-      //4.4 成功,根据id查询数据库
-      shop = getById(id);
-      //模拟缓存重建延时
-      Thread.sleep(200);
-
-      //5.没查到,返回错误
-      if (shop==null){
-        //将空值写入redis
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id,"",CACHE_NULL_TTL, TimeUnit.MINUTES);
-        //返回错误信息
-        return null;
-      }
-      //6.查到了,写到redis里,添加TTL到期删除
-      stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id,JSONUtil.toJsonStr(shop),CACHE_SHOP_TTL, TimeUnit.MINUTES);
-    } catch (InterruptedException e) {
-      throw new RuntimeException(e);
-    }finally {
-      //7.释放互斥锁
-      unlock(lockKey);
+      bloomFilterRegistry.putAll(CACHE_SHOP_KEY, ids);
+      total += ids.size();
+      lastId = ids.get(ids.size() - 1);
     }
-
-    //8.返回
-    return shop;
+    bloomFilterRegistry.markReady(CACHE_SHOP_KEY);
+    log.info("店铺布隆过滤器加载{}条, 耗时{}ms", total, System.currentTimeMillis() - begin);
   }
-  //解决缓存穿透
-  public Shop queryWithPassThrough(Long id){
-    //1.从redis查询商户缓存
-    String shopJson = stringRedisTemplate.opsForValue().get(CACHE_SHOP_KEY + id);
-    //2.判断是否存在
-    //3.存在,直接返回
-    if (StrUtil.isNotBlank(shopJson)){
-      Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-      return shop;
-    } else if (shopJson!=null){ //判断命中的是否为空值
-      //没命中空值
-      return null;
-    }
-    //4.不存在,根据id查询数据库
-    Shop shop = getById(id);
-    //5.没查到,返回错误
-    if (shop==null){
-      //将空值写入redis
-      stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id,"",CACHE_NULL_TTL, TimeUnit.MINUTES);
-      //返回错误信息
-      return null;
-    }
-    //6.查到了,写到redis里,添加TTL到期删除
-    stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id,JSONUtil.toJsonStr(shop),CACHE_SHOP_TTL, TimeUnit.MINUTES);
 
-    return shop;
+  /**
+   * 逻辑过期解决缓存击穿,重建逻辑统一在CacheClient中(同一个key不会被同时重建两次)
+   */
+  public Shop queryWithLogicalExpire(Long id){
+    return cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY,LOCK_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
   }
 
-  //获取锁(伪 setIfAbsent
-  private boolean tryLock(String key){
-    Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-    return BooleanUtil.isTrue(flag);
-  }
-  //释放锁(伪 delete
-  public void unlock(String key){
-    stringRedisTemplate.delete(key);
+  /**
+   * 互斥锁解决缓存击穿,未抢到重建的线程等待同一次重建的结果,不再休眠递归
+   */
+  public Shop queryWithMutes(Long id){
+    return cacheClient.queryWithMutes(CACHE_SHOP_KEY,LOCK_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
   }
 
-
-  public void saveShop2Redis(Long id, Long expireSeconds) throws InterruptedException {
-    //1.查询店铺数据
-    Shop shop = getById(id);
-    //模拟延迟
-    Thread.sleep(200);
-    //2.封装逻辑过期时间
-    RedisData redisData = new RedisData();
-    redisData.setData(shop);
-    redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireSeconds));
-    //3.写入redis
-    stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY+id,JSONUtil.toJsonStr(redisData));
+  //解决缓存穿透
+  public Shop queryWithPassThrough(Long id){
+    return cacheClient.queryWithPassThrough(CACHE_SHOP_KEY,id,Shop.class,this::getById,CACHE_SHOP_TTL,TimeUnit.MINUTES);
   }
 
-
-
+  public void saveShop2Redis(Long id, Long expireSeconds) {
+    //查询店铺数据,封装逻辑过期时间并写入redis;查库之前读版本号,期间店铺被更新过则不写
+    cacheClient.loadWithLogicalExpire(CACHE_SHOP_KEY+id,() -> getById(id),expireSeconds,TimeUnit.SECONDS);
+  }
 
   @Override
   @Transactional//事务
@@ -236,8 +205,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     }
     //1.更新数据库
     updateById(shop);
-    //2.删除缓存
-    stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+    //2.同一个事务里登记要删除的缓存,提交后异步删除并延迟双删
+    cacheOutboxService.record(Collections.singletonList(CACHE_SHOP_KEY + id));
     return Result.ok();
   }
 }
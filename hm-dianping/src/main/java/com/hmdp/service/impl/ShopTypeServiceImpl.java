@@ -7,12 +7,17 @@ import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheTtlPolicy;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.Resource;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_TTL;
 
 /**
  * <p>
@@ -28,9 +33,12 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheTtlPolicy cacheTtlPolicy;
+
     @Override
     public Result getList() {
-        String key = "cache:typeList";
+        String key = CACHE_SHOP_TYPE_KEY;
         //1.在redis中查询  range()获得指定区间,0~-1全部
         List<String> shopTypeList = stringRedisTemplate.opsForList().range(key, 0, -1);
         //2.存在,直接返回
@@ -60,6 +68,9 @@ public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> i
 
         //rightPushAll便于读的顺序准确
         stringRedisTemplate.opsForList().rightPushAll(key,shopTypeList);
+        //设置带随机抖动的TTL
+        stringRedisTemplate.expire(key,
+                cacheTtlPolicy.resolveSeconds(key, CACHE_SHOP_TYPE_TTL, TimeUnit.MINUTES), TimeUnit.SECONDS);
         //5.返回
         return Result.ok(shopTypes);
     }
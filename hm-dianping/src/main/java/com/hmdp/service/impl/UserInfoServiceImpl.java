@@ -4,8 +4,12 @@ import com.hmdp.entity.UserInfo;
 import com.hmdp.mapper.UserInfoMapper;
 import com.hmdp.service.IUserInfoService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.HmdpCached;
 import org.springframework.stereotype.Service;
 
+import static com.hmdp.utils.RedisConstants.CACHE_USER_INFO_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_USER_INFO_TTL;
+
 /**
  * <p>
  *  服务实现类
@@ -17,4 +21,17 @@ import org.springframework.stereotype.Service;
 @Service
 public class UserInfoServiceImpl extends ServiceImpl<UserInfoMapper, UserInfo> implements IUserInfoService {
 
+    @Override
+    @HmdpCached(prefix = CACHE_USER_INFO_KEY, ttl = CACHE_USER_INFO_TTL)
+    public UserInfo queryByUserId(Long userId) {
+        UserInfo info = getById(userId);
+        if (info == null) {
+            return null;
+        }
+        // 缓存的对象可能被多个请求共用,在放进缓存之前处理好
+        info.setCreateTime(null);
+        info.setUpdateTime(null);
+        return info;
+    }
+
 }
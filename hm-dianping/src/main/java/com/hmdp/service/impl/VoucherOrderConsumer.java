@@ -0,0 +1,531 @@
+package com.hmdp.service.impl;
+
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.config.SeckillProperties;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.ExecutorRegistry;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.NestedExceptionUtils;
+import org.springframework.data.domain.Range;
+import org.springframework.data.redis.connection.RedisStreamCommands;
+import org.springframework.data.redis.connection.stream.ByteRecord;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_DLQ;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_GROUP;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAMS_KEY;
+
+/**
+ * 秒杀订单消费.
+ * 每个实例启动多个消费者并行从g1组读取stream.orders和 seckill:streams 里登记的分桶stream,
+ * 消费者名为 前缀-进程号@主机名-序号,每个实例的消费者都不相同,各自有自己的pending list;
+ * 每个消费者读取所有stream,由消费者组把消息分给不同消费者,每次只读一个stream,集群下不会跨slot;
+ * 读到的消息按用户id分到固定的处理通道,
+ * 每个通道一个线程按顺序下单并ACK:同一个用户的订单始终在同一个通道里依次处理,不同用户的订单并行写库.
+ * 通道把排队的消息攒成一批,一个事务写库、一条XACK确认,数据库往返次数按批摊薄.
+ * 通道排队满了消费者会停在投递上,不再读取新消息,未处理的消息留在stream里.
+ * 处理失败没有确认的消息(包括宕机实例上的)由定时任务用XPENDING/XCLAIM回收重投,重试间隔按投递次数指数增长,
+ * 回收按id翻页扫描pending list,退避中的消息不会挡住后面的消息;超过最多投递次数的转入 stream.orders.dlq 并确认,不会一直卡住.
+ * 发布 seckill.orders.pending(未确认消息数)、seckill.orders.pending.age(最早未确认消息的毫秒数)、
+ * seckill.orders.reclaimed 和 seckill.orders.dead 指标
+ * @author king
+ */
+@Slf4j
+@Component
+public class VoucherOrderConsumer {
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final IVoucherOrderService voucherOrderService;
+    private final ExecutorRegistry executorRegistry;
+    private final SeckillProperties.Consumer config;
+
+    /**
+     * 本实例的消费者名前缀,带上进程号和主机名,多个实例之间不会重复
+     */
+    private final String consumerName;
+
+    private BlockingQueue<OrderMessage>[] lanes;
+
+    /**
+     * 要读取的stream,排好序
+     */
+    private volatile List<String> streams = Collections.singletonList(SECKILL_ORDER_STREAM);
+
+    /**
+     * 已经创建过消费者组的stream
+     */
+    private final Set<String> groups = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 已经投递到本实例处理通道、还没有处理完的消息(stream/id),回收时跳过
+     */
+    private final Set<String> inFlight = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 每个stream下次回收开始的pending id,还在退避中的消息不会挡住后面的消息
+     */
+    private final Map<String, RecordId> reclaimCursors = new ConcurrentHashMap<>();
+
+    private final AtomicLong pendingCount = new AtomicLong();
+    private final AtomicLong pendingAge = new AtomicLong();
+    private final Counter reclaimed;
+    private final Counter dead;
+
+    public VoucherOrderConsumer(StringRedisTemplate stringRedisTemplate, IVoucherOrderService voucherOrderService,
+                                ExecutorRegistry executorRegistry, SeckillProperties seckillProperties,
+                                MeterRegistry meterRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.voucherOrderService = voucherOrderService;
+        this.executorRegistry = executorRegistry;
+        this.config = seckillProperties.getConsumer();
+        this.consumerName = config.getName() + "-" + ManagementFactory.getRuntimeMXBean().getName();
+        Gauge.builder("seckill.orders.pending", pendingCount, AtomicLong::get).register(meterRegistry);
+        Gauge.builder("seckill.orders.pending.age", pendingAge, AtomicLong::get)
+                .baseUnit("milliseconds")
+                .register(meterRegistry);
+        this.reclaimed = Counter.builder("seckill.orders.reclaimed").register(meterRegistry);
+        this.dead = Counter.builder("seckill.orders.dead").register(meterRegistry);
+    }
+
+    @PostConstruct
+    @SuppressWarnings("unchecked")
+    private void init() {
+        loadStreams();
+        //1.启动处理通道
+        int laneCount = executorRegistry.threads(ExecutorRegistry.ORDER_LANE);
+        lanes = new BlockingQueue[laneCount];
+        ExecutorService laneExecutor = executorRegistry.executor(ExecutorRegistry.ORDER_LANE);
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new ArrayBlockingQueue<>(config.getLaneQueueCapacity());
+            laneExecutor.execute(new OrderLane(lanes[i]));
+        }
+        //2.启动消费者
+        int readerCount = executorRegistry.threads(ExecutorRegistry.ORDER_CONSUMER);
+        ExecutorService consumerExecutor = executorRegistry.executor(ExecutorRegistry.ORDER_CONSUMER);
+        for (int i = 0; i < readerCount; i++) {
+            consumerExecutor.execute(new OrderStreamReader(i));
+        }
+        log.info("秒杀订单消费启动: 消费者{}-1~{}, {}个处理通道, {}个stream",
+                consumerName, readerCount, laneCount, streams.size());
+    }
+
+    /**
+     * 定时读取新登记的分桶stream
+     */
+    @Scheduled(fixedDelayString = "#{@seckillProperties.consumer.streamRefresh.toMillis()}")
+    public void refreshStreams() {
+        try {
+            loadStreams();
+        } catch (Exception e) {
+            log.error("读取订单stream列表异常", e);
+        }
+    }
+
+    /**
+     * stream.orders加上 seckill:streams 里登记的分桶stream,新出现的先创建消费者组
+     */
+    private void loadStreams() {
+        Set<String> all = new TreeSet<>();
+        all.add(SECKILL_ORDER_STREAM);
+        Set<String> registered = stringRedisTemplate.opsForSet().members(SECKILL_ORDER_STREAMS_KEY);
+        if (registered != null) {
+            all.addAll(registered);
+        }
+        for (String stream : all) {
+            if (!groups.contains(stream)) {
+                createGroup(stream);
+                groups.add(stream);
+            }
+        }
+        streams = Collections.unmodifiableList(new ArrayList<>(all));
+    }
+
+    /**
+     * 创建消费者组,stream不存在时一起创建;组已存在时忽略
+     */
+    private void createGroup(String stream) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<String>) connection -> connection.streamCommands()
+                    .xGroupCreate(stream.getBytes(StandardCharsets.UTF_8), SECKILL_ORDER_GROUP,
+                            ReadOffset.from("0"), true));
+        } catch (Exception e) {
+            String message = NestedExceptionUtils.getMostSpecificCause(e).getMessage();
+            if (message == null || !message.contains("BUSYGROUP")) {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 消费者线程任务,只负责读取和投递
+     */
+    private class OrderStreamReader implements Runnable {
+
+        private final Consumer consumer;
+
+        OrderStreamReader(int index) {
+            this.consumer = Consumer.from(SECKILL_ORDER_GROUP, consumerName + "-" + (index + 1));
+        }
+
+        @Override
+        public void run() {
+            //上次没有确认的消息由reclaim回收,这里只读新消息
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    try {
+                        //1.所有stream,只有一个时阻塞读取,有多个时轮询
+                        List<String> all = streams;
+                        boolean block = all.size() == 1;
+                        int count = 0;
+                        for (String stream : all) {
+                            //2.获取消息队列中的订单信息 XREADGROUP GROUP g1 consumer COUNT n [BLOCK 2000] stream >
+                            List<MapRecord<String, Object, Object>> list = read(stream, block);
+                            //3.判断消息是否获取成功
+                            if (list == null || list.isEmpty()) {
+                                //获取失败,没有消息,继续
+                                continue;
+                            }
+                            count += list.size();
+                            //4.按用户投递到处理通道,通道满时阻塞
+                            for (MapRecord<String, Object, Object> record : list) {
+                                OrderMessage message = parse(stream, record.getId(), record.getValue());
+                                if (message != null) {
+                                    lanes[laneOf(message)].put(message);
+                                }
+                            }
+                        }
+                        if (count == 0 && !block) {
+                            TimeUnit.MILLISECONDS.sleep(config.getPollInterval().toMillis());
+                        }
+                    } catch (InterruptedException e) {
+                        throw e;
+                    } catch (Exception e) {
+                        log.error("读取订单消息异常, 消费者{}", consumer.getName(), e);
+                        TimeUnit.SECONDS.sleep(1);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private List<MapRecord<String, Object, Object>> read(String stream, boolean block) {
+            StreamReadOptions options = StreamReadOptions.empty().count(config.getReadCount());
+            return stringRedisTemplate.opsForStream().read(
+                    consumer,
+                    block ? options.block(config.getBlock()) : options,
+                    StreamOffset.create(stream, ReadOffset.lastConsumed())
+            );
+        }
+
+    }
+
+    /**
+     * 解析出消息中的订单信息,解析失败的不确认,多次回收后转入死信
+     */
+    private OrderMessage parse(String stream, RecordId id, Map<?, ?> value) {
+        try {
+            VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
+            if (voucherOrder.getUserId() == null || voucherOrder.getVoucherId() == null) {
+                throw new IllegalArgumentException("缺少userId或voucherId");
+            }
+            OrderMessage message = new OrderMessage(stream, id, voucherOrder);
+            inFlight.add(message.key());
+            return message;
+        } catch (Exception e) {
+            log.error("无法解析的订单消息{}/{}: {}", stream, id, value, e);
+            return null;
+        }
+    }
+
+    /**
+     * 同一个用户始终进入同一个通道
+     */
+    private int laneOf(OrderMessage message) {
+        return Math.floorMod(message.voucherOrder.getUserId().hashCode(), lanes.length);
+    }
+
+    /**
+     * 处理通道线程任务,按投递顺序攒批下单,一批一个事务、一次确认
+     */
+    private class OrderLane implements Runnable {
+
+        private final BlockingQueue<OrderMessage> queue;
+
+        OrderLane(BlockingQueue<OrderMessage> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            List<OrderMessage> batch = new ArrayList<>(config.getBatchSize());
+            while (!Thread.currentThread().isInterrupted()) {
+                batch.clear();
+                try {
+                    //1.等到第一条消息,再把已经排队的取出来凑成一批
+                    batch.add(queue.take());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                queue.drainTo(batch, config.getBatchSize() - 1);
+                try {
+                    //2.下单
+                    List<OrderMessage> done = handleVoucherOrders(batch);
+                    //3.ACK确认,每个stream一条 XACK stream g1 id1 id2 ...
+                    Map<String, List<RecordId>> ids = new HashMap<>();
+                    for (OrderMessage message : done) {
+                        ids.computeIfAbsent(message.stream, k -> new ArrayList<>()).add(message.id);
+                    }
+                    for (Map.Entry<String, List<RecordId>> entry : ids.entrySet()) {
+                        stringRedisTemplate.opsForStream().acknowledge(entry.getKey(), SECKILL_ORDER_GROUP,
+                                entry.getValue().toArray(new RecordId[0]));
+                    }
+                } catch (Exception e) {
+                    //不确认,消息留在pending list中,由reclaim回收重投
+                    log.error("确认订单消息异常, {}条", batch.size(), e);
+                } finally {
+                    for (OrderMessage message : batch) {
+                        inFlight.remove(message.key());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 下单
+     *
+     * @return 处理成功、可以确认的消息
+     */
+    private List<OrderMessage> handleVoucherOrders(List<OrderMessage> batch) {
+        List<VoucherOrder> voucherOrders = new ArrayList<>(batch.size());
+        for (OrderMessage message : batch) {
+            voucherOrders.add(message.voucherOrder);
+        }
+        //1.一个事务写入,一人一单由数据库唯一索引保证,不需要分布式锁
+        try {
+            voucherOrderService.createVoucherBatch(voucherOrders);
+            return batch;
+        } catch (Exception e) {
+            log.error("批量下单异常, {}条, 改为逐条处理", batch.size(), e);
+        }
+        //2.这批里有同时被写入的订单或者有处理不了的订单,逐条写入,一条失败不影响其它订单
+        List<OrderMessage> done = new ArrayList<>(batch.size());
+        for (OrderMessage message : batch) {
+            try {
+                voucherOrderService.createVoucher(message.voucherOrder);
+                done.add(message);
+            } catch (Exception e) {
+                log.error("处理订单异常, 订单{}", message.voucherOrder.getId(), e);
+            }
+        }
+        return done;
+    }
+
+    /**
+     * 回收超时没有确认的消息,不管属于哪个消费者:
+     * 空闲时间超过重试间隔的用XCLAIM认领后重新投递,投递次数超过上限的转入死信stream
+     */
+    @Scheduled(fixedDelayString = "#{@seckillProperties.consumer.reclaimInterval.toMillis()}")
+    public void reclaim() {
+        long total = 0;
+        long age = 0;
+        for (String stream : streams) {
+            try {
+                //1.积压指标 XPENDING stream g1
+                PendingMessagesSummary summary = stringRedisTemplate.opsForStream()
+                        .pending(stream, SECKILL_ORDER_GROUP);
+                if (summary == null || summary.getTotalPendingMessages() == 0) {
+                    continue;
+                }
+                total += summary.getTotalPendingMessages();
+                age = Math.max(age, System.currentTimeMillis() - summary.minRecordId().getTimestamp());
+                reclaim(stream);
+            } catch (Exception e) {
+                log.error("回收订单消息异常, stream={}", stream, e);
+            }
+        }
+        pendingCount.set(total);
+        pendingAge.set(age);
+    }
+
+    /**
+     * 从上次停下的位置按id翻页扫描pending list,扫到末尾后下次从头开始;
+     * 一次最多认领reclaimCount条,剩下的从下一页继续
+     */
+    private void reclaim(String stream) {
+        RecordId cursor = reclaimCursors.remove(stream);
+        int claimed = 0;
+        while (true) {
+            //2.下一页未确认消息 XPENDING stream g1 cursor + n
+            Range<String> range = cursor == null
+                    ? Range.unbounded()
+                    : Range.rightUnbounded(Range.Bound.inclusive(cursor.getValue()));
+            PendingMessages pending = stringRedisTemplate.opsForStream()
+                    .pending(stream, SECKILL_ORDER_GROUP, range, config.getReclaimCount());
+            for (PendingMessage message : pending) {
+                if (reclaim(stream, message)) {
+                    claimed++;
+                }
+            }
+            //3.扫到末尾了,下次从头开始
+            if (pending.size() < config.getReclaimCount()) {
+                return;
+            }
+            cursor = next(pending.get(pending.size() - 1).getId());
+            //4.这次认领够了,下次从这里继续
+            if (claimed >= config.getReclaimCount()) {
+                reclaimCursors.put(stream, cursor);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 到了重试时间的消息认领后重投或转入死信
+     *
+     * @return 是否认领成功
+     */
+    private boolean reclaim(String stream, PendingMessage message) {
+        if (inFlight.contains(stream + "/" + message.getId())) {
+            return false;
+        }
+        //1.还没到重试时间
+        Duration backoff = backoff(message.getTotalDeliveryCount(),
+                config.getReclaimMinIdle(), config.getReclaimMaxIdle());
+        if (message.getElapsedTimeSinceLastDelivery().compareTo(backoff) < 0) {
+            return false;
+        }
+        //2.认领,多个实例同时回收时只有一个能认领成功
+        List<ByteRecord> records = claim(stream, message.getId(), backoff);
+        if (records.isEmpty()) {
+            return false;
+        }
+        MapRecord<String, String, String> record = records.get(0).deserialize(RedisSerializer.string());
+        if (exhausted(message.getTotalDeliveryCount(), config.getMaxDeliveries())) {
+            deadLetter(stream, record, message.getTotalDeliveryCount());
+        } else {
+            retry(stream, record);
+        }
+        return true;
+    }
+
+    /**
+     * 紧跟在id后面的id,作为闭区间的起点相当于不包含id本身;XPENDING的开区间要redis 6.2才支持
+     */
+    static RecordId next(RecordId id) {
+        return RecordId.of(id.getTimestamp(), id.getSequence() + 1);
+    }
+
+    /**
+     * 重试间隔,第n次投递后为 minIdle * 2^(n-1),不超过maxIdle
+     */
+    static Duration backoff(long deliveries, Duration minIdle, Duration maxIdle) {
+        long shift = Math.min(Math.max(deliveries - 1, 0), 20);
+        Duration backoff = minIdle.multipliedBy(1L << shift);
+        return backoff.compareTo(maxIdle) > 0 ? maxIdle : backoff;
+    }
+
+    /**
+     * 已经投递了maxDeliveries次仍未确认,不再重试
+     */
+    static boolean exhausted(long deliveries, int maxDeliveries) {
+        return deliveries >= maxDeliveries;
+    }
+
+    /**
+     * XCLAIM stream g1 {consumer}-reclaim minIdle id,认领后投递次数加一、空闲时间清零
+     */
+    private List<ByteRecord> claim(String stream, RecordId id, Duration minIdle) {
+        String owner = consumerName + "-reclaim";
+        List<ByteRecord> records = stringRedisTemplate.execute((RedisCallback<List<ByteRecord>>) connection ->
+                connection.streamCommands().xClaim(stream.getBytes(StandardCharsets.UTF_8),
+                        SECKILL_ORDER_GROUP, owner, RedisStreamCommands.XClaimOptions.minIdle(minIdle).ids(id)));
+        return records == null ? Collections.emptyList() : records;
+    }
+
+    /**
+     * 重新投递到处理通道,通道满时不等待,下次回收再投
+     */
+    private void retry(String stream, MapRecord<String, String, String> record) {
+        OrderMessage message = parse(stream, record.getId(), record.getValue());
+        if (message == null) {
+            return;
+        }
+        if (lanes[laneOf(message)].offer(message)) {
+            reclaimed.increment();
+        } else {
+            inFlight.remove(message.key());
+        }
+    }
+
+    /**
+     * 转入死信stream并确认,原消息内容不变,附带原stream、原id和投递次数
+     */
+    private void deadLetter(String stream, MapRecord<String, String, String> record, long deliveries) {
+        Map<String, String> value = new HashMap<>(record.getValue());
+        value.put("sourceStream", stream);
+        value.put("sourceId", record.getId().getValue());
+        value.put("deliveries", String.valueOf(deliveries));
+        stringRedisTemplate.opsForStream().add(SECKILL_ORDER_DLQ, value);
+        stringRedisTemplate.opsForStream().acknowledge(stream, SECKILL_ORDER_GROUP, record.getId());
+        dead.increment();
+        log.error("订单消息{}/{}投递{}次仍未处理成功, 转入{}", stream, record.getId(), deliveries, SECKILL_ORDER_DLQ);
+    }
+
+    private static class OrderMessage {
+        private final String stream;
+        private final RecordId id;
+        private final VoucherOrder voucherOrder;
+
+        OrderMessage(String stream, RecordId id, VoucherOrder voucherOrder) {
+            this.stream = stream;
+            this.id = id;
+            this.voucherOrder = voucherOrder;
+        }
+
+        /**
+         * 不同stream的id可能相同,带上stream区分
+         */
+        String key() {
+            return stream + "/" + id;
+        }
+    }
+}
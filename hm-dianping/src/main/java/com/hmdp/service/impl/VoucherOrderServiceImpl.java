@@ -1,34 +1,32 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillStockBuckets;
+import com.hmdp.utils.SoldOutRegistry;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
-import org.springframework.core.io.ClassPathResource;
-import org.springframework.data.redis.connection.stream.*;
-import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
-import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.Duration;
-import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.*;
+import java.util.Set;
 
 /**
  * <p>
@@ -50,169 +48,74 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private RedisIdWorker redisIdWorker;
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private SeckillStockBuckets seckillStockBuckets;
 
     @Resource
-    private RedissonClient redissonClient;
+    private SoldOutRegistry soldOutRegistry;
 
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript<Long>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-    }
-
-
-    /**
-     * 线程池
-     */
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
-
-    private static IVoucherOrderService proxy;
-    /**
-     * 线程任务
-     */
-    private class VoucherOrderHandler implements Runnable{
-        String queueName = "stream.orders";
-        @Override
-        public void run() {
-            while (true){
-                try {
-                    //1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCk 2000 stream.orders >
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
-                    );
-                    //2.判断消息是否获取成功
-                    if (list == null || list.isEmpty()){
-                        //获取失败,没有消息,继续
-                        continue;
-                    }
-                    //3.解析出消息中的订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    //4.获取成功,下单
-                    handleVoucherOrder(voucherOrder);
-                    //5.ACK确认 XACK stream.order g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
-                } catch (Exception e) {
-                    log.error("处理订单异常",e);
-                    //抛异常,去pending list中取未被确认处理的消息
-                    handlePendingList();
-                }
-            }
-        }
-
-        private void handlePendingList() {
-            while (true){
-                try {
-                    //1.获取pending list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 stream.orders 0
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
-                    );
-                    //2.判断消息是否获取成功
-                    if (list == null || list.isEmpty()){
-                        //获取失败,pending-list没有未处理消息,结束循环
-                        break;
-                    }
-                    //3.解析出消息中的订单信息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    //4.获取成功,下单
-                    handleVoucherOrder(voucherOrder);
-                    //5.ACK确认 XACK stream.order g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName,"g1",record.getId());
-                } catch (Exception e) {
-                    log.error("处理pending-list订单异常",e);
-                }
-            }
-        }
-    }
-
-    /**
-     * 外部类
-     * @param voucherOrder 订单
-     */
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        //1.获取用户id
-        Long userId = voucherOrder.getUserId();
-
-        //2.创建锁对象
-        RLock lock = redissonClient.getLock("order" + userId);
-
-        //3.获取锁
-        boolean isLock = lock.tryLock();
-        if (!isLock) {
-            //3.1获取锁失败,返回错误
-            log.error("一人限购一单");
-            return;
-        }
-        try {
-            proxy.createVoucher(voucherOrder);
-        } finally {
-            //释放锁
-            lock.unlock();
-        }
-    }
-
-    /**
-     * PostConstruct注解 在当前类初始化完毕后就来执行这个东西
-     */
-    @PostConstruct
-    private void init(){
-        //执行线程任务
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
-    }
+    @Resource
+    private IVoucherService voucherService;
 
     @Override
     public Result seckillVoucher(Long voucherId) {
-        //1.判断条件
-        //1.1查询优惠券
-        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
-        //1.2.判断秒杀是否开始
-        if (voucher.getBeginTime().isAfter(LocalDateTime.now())) {
-            //未开始
-            return Result.fail("优惠活动尚未开始");
-        }
-        //1.3.判断秒杀是否结束
-        if (voucher.getEndTime().isBefore(LocalDateTime.now())) {
-            //结束
-            return Result.fail("优惠活动已结束");
+        //0.本实例已知卖完,直接返回
+        if (soldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
         }
-
-        //用户id
+        //1.用户id
         Long userId = UserHolder.getUser().getId();
         //订单id
         long orderId = redisIdWorker.nextId("order");
 
-        //2. 执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                //空集合
-                Collections.emptyList(),
-                userId.toString(),voucherId.toString(), String.valueOf(orderId)
-        );
+        //2. 执行lua脚本,在脚本里判断秒杀时间、库存和一人一单,分桶的券在用户所在分桶下单
+        int r = seckillStockBuckets.purchase(voucherId, userId, orderId);
+        if (r == SeckillStockBuckets.NO_META) {
+            //2.1 redis里没有券信息,从本地缓存或数据库补上再试一次
+            if (!reloadSeckillVoucher(voucherId)) {
+                return Result.fail("优惠券不存在");
+            }
+            r = seckillStockBuckets.purchase(voucherId, userId, orderId);
+        }
         //3.判断结果是否为0
-        int r = result.intValue();
-
-        if (r != 0){
-            //3.1 不为0,代表没有购买资格,=1,2
-            return Result.fail(r==1?"库存不足":"一人限购一单");
+        switch (r) {
+            case SeckillStockBuckets.OK:
+                break;
+            case SeckillStockBuckets.SOLD_OUT:
+                //记下卖完,通知其它实例
+                soldOutRegistry.markSoldOut(voucherId);
+                return Result.fail("库存不足");
+            case SeckillStockBuckets.DUPLICATE:
+                return Result.fail("一人限购一单");
+            case SeckillStockBuckets.NOT_STARTED:
+                return Result.fail("优惠活动尚未开始");
+            case SeckillStockBuckets.ENDED:
+                return Result.fail("优惠活动已结束");
+            default:
+                return Result.fail("优惠券不存在");
         }
 
-        //4.4获取代理对象(事务)
-        proxy = (IVoucherOrderService) AopContext.currentProxy();
+        //4.订单由VoucherOrderConsumer异步写入数据库
 
-        //6.返回订单id
+        //5.返回订单id
         return Result.ok(orderId);
 
     }
 
+    /**
+     * 把券的时间窗口和状态写回redis,券信息来自本地缓存,避免大量请求同时查库
+     *
+     * @return 券是否存在
+     */
+    private boolean reloadSeckillVoucher(Long voucherId) {
+        Voucher voucher = voucherService.querySeckillVoucher(voucherId);
+        if (voucher == null) {
+            return false;
+        }
+        seckillStockBuckets.saveMeta(voucherId, voucher.getBeginTime(), voucher.getEndTime(),
+                voucher.getStatus() == null ? 1 : voucher.getStatus());
+        return true;
+    }
+
     /*
       同一个类中方法调用，导致@Transactional失效
       开发中避免不了会对同一个类里面的方法调用，
@@ -229,20 +132,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Transactional(rollbackFor = Exception.class)
     public void createVoucher(VoucherOrder voucherOrder) {
 
-        Long userId = voucherOrder.getUserId();
-
-        //5.一人一单
-        //5.1查询订单
-        int count = query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count();
-
-        //5.2判断是否存在
-        if (count > 0) {
-            log.error("用户已购买过一次");
-            return;
-        }
-
-
-        //6.扣减库存
+        //5.扣减库存
         boolean success = seckillVoucherService.update()
                 .setSql("stock = stock-1")
                 .eq("voucher_id", voucherOrder.getVoucherId()).gt("stock", 0)
@@ -254,10 +144,97 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }
 
 
-        //7.保存到数据库
-        save(voucherOrder);
+        //6.保存到数据库,一人一单由(user_id, voucher_id)唯一索引保证
+        try {
+            getBaseMapper().insertBatch(Collections.singletonList(voucherOrder));
+        } catch (DuplicateKeyException e) {
+            //重复投递或已购买过,回滚扣掉的库存,按处理成功对待;其它插入错误照常抛出
+            log.error("用户已购买过一次, 订单{}", voucherOrder.getId());
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+        }
+    }
 
-        //自动释放锁,然后提交事务,所以得把锁设在函数上
+    @Override
+    @Transactional(rollbackFor = Exception.class)
+    public int createVoucherBatch(List<VoucherOrder> voucherOrders) {
+        //1.去掉同一批里重复投递的消息
+        Set<String> purchased = new HashSet<>();
+        Map<Long, List<VoucherOrder>> byVoucher = new LinkedHashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            if (!purchased.add(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId())) {
+                log.error("用户已购买过一次, 订单{}", voucherOrder.getId());
+                continue;
+            }
+            byVoucher.computeIfAbsent(voucherOrder.getVoucherId(), k -> new ArrayList<>()).add(voucherOrder);
+        }
+
+        //2.去掉数据库里已经有的订单(重复投递),每张券一条查询
+        byVoucher.replaceAll((voucherId, orders) -> removePurchased(voucherId, orders));
+
+        //3.扣减库存,每张券一条UPDATE扣掉这批的数量
+        List<VoucherOrder> accepted = new ArrayList<>(voucherOrders.size());
+        byVoucher.forEach((voucherId, orders) -> {
+            if (orders.isEmpty()) {
+                return;
+            }
+            int quantity = deductStock(voucherId, orders.size());
+            if (quantity < orders.size()) {
+                log.error("库存不足, 优惠券{}丢弃{}个订单", voucherId, orders.size() - quantity);
+            }
+            accepted.addAll(orders.subList(0, quantity));
+        });
 
+        //4.一条INSERT保存这批订单,一人一单由(user_id, voucher_id)唯一索引保证,
+        //去重之后仍有重复时抛出DuplicateKeyException,整批回滚交给调用方逐条处理
+        if (!accepted.isEmpty()) {
+            getBaseMapper().insertBatch(accepted);
+        }
+        return accepted.size();
+    }
+
+    /**
+     * 去掉已经买过这张券的用户的订单
+     */
+    private List<VoucherOrder> removePurchased(Long voucherId, List<VoucherOrder> orders) {
+        List<Long> userIds = new ArrayList<>(orders.size());
+        for (VoucherOrder order : orders) {
+            userIds.add(order.getUserId());
+        }
+        Set<Long> existing = new HashSet<>(getBaseMapper().queryPurchasedUsers(voucherId, userIds));
+        if (existing.isEmpty()) {
+            return orders;
+        }
+        List<VoucherOrder> remaining = new ArrayList<>(orders.size() - existing.size());
+        for (VoucherOrder order : orders) {
+            if (existing.contains(order.getUserId())) {
+                log.error("用户已购买过一次, 订单{}", order.getId());
+            } else {
+                remaining.add(order);
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * 扣减库存,库存不够整批时按剩余库存扣
+     *
+     * @return 实际扣减的数量
+     */
+    private int deductStock(Long voucherId, int quantity) {
+        boolean success = seckillVoucherService.update()
+                .setSql("stock = stock - " + quantity)
+                .eq("voucher_id", voucherId).ge("stock", quantity)
+                //where id = ? and stock >= quantity
+                .update();
+        if (success) {
+            return quantity;
+        }
+        //redis里已经扣过库存,这里一般不会走到
+        SeckillVoucher voucher = seckillVoucherService.getById(voucherId);
+        int remaining = voucher == null ? 0 : Math.min(voucher.getStock(), quantity);
+        if (remaining <= 0) {
+            return 0;
+        }
+        return deductStock(voucherId, remaining);
     }
 }
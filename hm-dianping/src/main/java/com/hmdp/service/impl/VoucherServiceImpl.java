@@ -1,20 +1,31 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.dto.Result;
+import com.hmdp.config.SeckillProperties;
 import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.HmdpCacheEvict;
+import com.hmdp.utils.HmdpCached;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.SeckillStockBuckets;
+import com.hmdp.utils.SoldOutRegistry;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
 import java.util.List;
+import java.util.Optional;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_VOUCHER_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_VOUCHER_TTL;
 
 /**
  * <p>
@@ -31,18 +42,44 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     private ISeckillVoucherService seckillVoucherService;
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private SeckillStockBuckets seckillStockBuckets;
+
+    @Resource
+    private SeckillProperties seckillProperties;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    /**
+     * 本地缓存的秒杀券,不存在的券存Optional.empty();有容量上限和过期时间,本实例修改券时清除
+     */
+    private LRUCache<Long, Optional<Voucher>> seckillVouchers;
+
+    @PostConstruct
+    private void init() {
+        seckillVouchers = CacheUtil.newLRUCache(seckillProperties.getVoucherCacheSize(),
+                seckillProperties.getVoucherCacheTtl().toMillis());
+    }
 
     @Override
-    public Result queryVoucherOfShop(Long shopId) {
+    @HmdpCached(prefix = CACHE_SHOP_VOUCHER_KEY, ttl = CACHE_SHOP_VOUCHER_TTL)
+    public List<Voucher> queryVoucherOfShop(Long shopId) {
         // 查询优惠券信息
-        List<Voucher> vouchers = getBaseMapper().queryVoucherOfShop(shopId);
-        // 返回结果
-        return Result.ok(vouchers);
+        return getBaseMapper().queryVoucherOfShop(shopId);
+    }
+
+    @Override
+    @HmdpCacheEvict(prefix = CACHE_SHOP_VOUCHER_KEY, key = "#voucher.shopId")
+    public void addVoucher(Voucher voucher) {
+        save(voucher);
     }
 
     @Override
     @Transactional(rollbackFor = Exception.class)
+    @HmdpCacheEvict(prefix = CACHE_SHOP_VOUCHER_KEY, key = "#voucher.shopId")
     public void addSeckillVoucher(Voucher voucher) {
         // 保存优惠券
         save(voucher);
@@ -54,7 +91,62 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setEndTime(voucher.getEndTime());
         seckillVoucherService.save(seckillVoucher);
 
-        //保存秒杀信息到redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_KEY+voucher.getId(),voucher.getStock().toString());
+        //保存秒杀库存到redis中,热门券按配置拆成多个分桶
+        int buckets = voucher.getStockBuckets() != null ? voucher.getStockBuckets() : seckillProperties.getStockBuckets();
+        seckillStockBuckets.init(voucher.getId(), voucher.getStock(), buckets);
+        //保存秒杀时间和状态到redis中,抢购时在lua脚本里判断,不再查库
+        seckillStockBuckets.saveMeta(voucher.getId(), voucher.getBeginTime(), voucher.getEndTime(),
+                voucher.getStatus() == null ? 1 : voucher.getStatus());
+        //之前按不存在缓存过的id
+        seckillVouchers.remove(voucher.getId());
+    }
+
+    @Override
+    @Transactional(rollbackFor = Exception.class)
+    public void restockSeckillVoucher(Long voucherId, Integer quantity) {
+        Voucher voucher = getById(voucherId);
+        if (voucher == null || quantity == null || quantity <= 0) {
+            return;
+        }
+        // 数据库加库存
+        boolean updated = seckillVoucherService.update()
+                .setSql("stock = stock + " + quantity)
+                .eq("voucher_id", voucherId)
+                .update();
+        if (!updated) {
+            return;
+        }
+        // 事务提交后再给redis加库存、清除各实例的售罄标记:
+        // 回滚时redis不会多出数据库没有的库存,消费者也不会在数据库加库存之前卖出新增的库存
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                seckillStockBuckets.restock(voucherId, quantity);
+                soldOutRegistry.reset(voucherId);
+                cacheClient.evict(CACHE_SHOP_VOUCHER_KEY + voucher.getShopId());
+            }
+        });
+    }
+
+    @Override
+    public Voucher querySeckillVoucher(Long voucherId) {
+        Optional<Voucher> cached = seckillVouchers.get(voucherId, false);
+        if (cached == null) {
+            cached = Optional.ofNullable(loadSeckillVoucher(voucherId));
+            seckillVouchers.put(voucherId, cached);
+        }
+        return cached.orElse(null);
+    }
+
+    /**
+     * 查库,券信息带上秒杀时间
+     */
+    private Voucher loadSeckillVoucher(Long voucherId) {
+        Voucher voucher = getById(voucherId);
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        if (voucher == null || seckillVoucher == null) {
+            return null;
+        }
+        return voucher.setBeginTime(seckillVoucher.getBeginTime()).setEndTime(seckillVoucher.getEndTime());
     }
 }
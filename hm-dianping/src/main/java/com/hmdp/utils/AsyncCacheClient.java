@@ -0,0 +1,384 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.CACHE_NULL_TTL;
+
+/**
+ * CacheClient的异步版本,三种策略语义与CacheClient一致,返回CompletableFuture.
+ * redis读写走lettuce的响应式命令,不占用调用线程;
+ * 查库和布隆过滤器这类阻塞调用放到独立的有界线程池(cache-async-db)里执行,池满时直接失败.
+ * 与CacheClient共用本地缓存、布隆过滤器、编解码、TTL策略、版本号和指标.
+ * 区别:布隆过滤器在redis未命中之后才检查,检查和查库一起在查库线程池里执行
+ * @author king
+ */
+@Slf4j
+@Component
+public class AsyncCacheClient {
+
+    private static final byte[] NULL_VALUE = new byte[0];
+
+    private static final byte[] LOCK_VALUE = "1".getBytes(StandardCharsets.UTF_8);
+
+    private final ReactiveRedisTemplate<String, byte[]> reactiveCacheRedisTemplate;
+    private final CacheCodecs cacheCodecs;
+    private final NearCache nearCache;
+    private final SingleFlight singleFlight;
+    private final BloomFilterRegistry bloomFilterRegistry;
+    private final CacheTtlPolicy cacheTtlPolicy;
+    private final HotKeyDetector hotKeyDetector;
+    private final CacheMetrics cacheMetrics;
+    private final CacheVersions cacheVersions;
+
+    private final Scheduler dbScheduler;
+
+    public AsyncCacheClient(ReactiveRedisTemplate<String, byte[]> reactiveCacheRedisTemplate, CacheCodecs cacheCodecs,
+                            NearCache nearCache, SingleFlight singleFlight, BloomFilterRegistry bloomFilterRegistry,
+                            CacheTtlPolicy cacheTtlPolicy, HotKeyDetector hotKeyDetector, CacheMetrics cacheMetrics,
+                            CacheVersions cacheVersions, ExecutorRegistry executorRegistry) {
+        this.reactiveCacheRedisTemplate = reactiveCacheRedisTemplate;
+        this.cacheCodecs = cacheCodecs;
+        this.nearCache = nearCache;
+        this.singleFlight = singleFlight;
+        this.bloomFilterRegistry = bloomFilterRegistry;
+        this.cacheTtlPolicy = cacheTtlPolicy;
+        this.hotKeyDetector = hotKeyDetector;
+        this.cacheMetrics = cacheMetrics;
+        this.cacheVersions = cacheVersions;
+        //线程池由ExecutorRegistry统一关闭
+        this.dbScheduler = Schedulers.fromExecutorService(
+                executorRegistry.executor(ExecutorRegistry.CACHE_ASYNC_DB), ExecutorRegistry.CACHE_ASYNC_DB);
+    }
+
+    /**
+     * 缓存穿透,异步版本
+     *
+     * @param <R>        the type parameter
+     * @param <ID>       the type parameter
+     * @param keyPrefix  the key prefix
+     * @param id         the id
+     * @param type       the type
+     * @param dbFallback the db fallback
+     * @param time       the time
+     * @param unit       the unit
+     * @return 结果的future,不存在时结果为null
+     */
+    public <R,ID> CompletableFuture<R> queryWithPassThrough(String keyPrefix, ID id, Type type,
+                                                            Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        String key = keyPrefix + id;
+        //0.先查本地缓存
+        R local = getLocal(keyPrefix, key);
+        if (local != null){
+            cacheMetrics.request(keyPrefix, CacheMetrics.PASS_THROUGH, CacheMetrics.LOCAL_HIT);
+            return CompletableFuture.completedFuture(local);
+        }
+        //1.从redis查询
+        return getRaw(key).flatMap(raw -> {
+            nearCache.recordL2(keyPrefix, raw.isPresent());
+            //2.命中,直接返回
+            if (raw.isPresent()){
+                return decodeHit(keyPrefix, CacheMetrics.PASS_THROUGH, key, raw.get(), bytes -> cacheCodecs.decode(keyPrefix, bytes, type));
+            }
+            //3.未命中,先读版本号再查库,带版本号写回,查不到写空值
+            Timer.Sample sample = cacheMetrics.startRebuild();
+            return cacheVersions.currentAsync(key)
+                    .flatMap(version -> load(keyPrefix, CacheMetrics.PASS_THROUGH, id, dbFallback)
+                            .flatMap(r -> setIfNotStale(keyPrefix, CacheMetrics.PASS_THROUGH, key, version,
+                                    r.orElse(null), time, unit)
+                                    .flatMap(written -> putLocalIfWritten(keyPrefix, key, written, r))))
+                    .doFinally(s -> cacheMetrics.stopRebuild(sample, keyPrefix, CacheMetrics.PASS_THROUGH));
+        }).toFuture();
+    }
+
+    /**
+     * 互斥锁解决缓存击穿,异步版本.
+     * 本JVM内同一个key只有一个重建在进行,抢不到锁时异步延迟后重试,不占用线程
+     *
+     * @param <R>           the type parameter
+     * @param <ID>          the type parameter
+     * @param keyPrefix     the key prefix
+     * @param lockKeyPrefix the lock key prefix
+     * @param id            the id
+     * @param type          the type
+     * @param dbFallback    the db fallback
+     * @param time          the time
+     * @param unit          the unit
+     * @return 结果的future,不存在时结果为null
+     */
+    public <R,ID> CompletableFuture<R> queryWithMutes(String keyPrefix, String lockKeyPrefix, ID id, Type type,
+                                                      Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        String key = keyPrefix + id;
+        //0.先查本地缓存
+        R local = getLocal(keyPrefix, key);
+        if (local != null){
+            cacheMetrics.request(keyPrefix, CacheMetrics.MUTEX, CacheMetrics.LOCAL_HIT);
+            return CompletableFuture.completedFuture(local);
+        }
+        String lockKey = lockKeyPrefix + id;
+        Function<byte[],R> decoder = bytes -> cacheCodecs.decode(keyPrefix, bytes, type);
+        //1.从redis查询
+        return getRaw(key).toFuture().thenCompose(raw -> {
+            nearCache.recordL2(keyPrefix, raw.isPresent());
+            //2.命中,直接返回
+            if (raw.isPresent()){
+                return decodeHit(keyPrefix, CacheMetrics.MUTEX, key, raw.get(), decoder).toFuture();
+            }
+            //3.未命中,本JVM内合并成一次重建
+            return singleFlight.executeAsync(key, () -> {
+                Timer.Sample sample = cacheMetrics.startRebuild();
+                return rebuildWithMutex(keyPrefix, CacheMetrics.MUTEX, key, lockKey, decoder,
+                        load(keyPrefix, CacheMetrics.MUTEX, id, dbFallback),
+                        (r, version) -> setIfNotStale(keyPrefix, CacheMetrics.MUTEX, key, version, r, time, unit))
+                        .doFinally(s -> cacheMetrics.stopRebuild(sample, keyPrefix, CacheMetrics.MUTEX))
+                        .toFuture();
+            });
+        });
+    }
+
+    /**
+     * 逻辑过期解决缓存击穿,异步版本.
+     * 过期时直接返回旧数据并在后台重建;未命中(没有预热或刚被删除)时加锁加载一次
+     *
+     * @param <R>           the type parameter
+     * @param <ID>          the type parameter
+     * @param keyPrefix     the key prefix
+     * @param lockKeyPrefix the lock key prefix
+     * @param id            the id
+     * @param type          the type
+     * @param dbFallback    the db fallback
+     * @param time          the time
+     * @param unit          the unit
+     * @return 结果的future,不存在时结果为null
+     */
+    public <R,ID> CompletableFuture<R> queryWithLogicalExpire(String keyPrefix, String lockKeyPrefix, ID id, Type type,
+                                                              Function<ID,R> dbFallback, Long time, TimeUnit unit){
+        String key = keyPrefix + id;
+        //0.先查本地缓存
+        R local = getLocal(keyPrefix, key);
+        if (local != null){
+            cacheMetrics.request(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, CacheMetrics.LOCAL_HIT);
+            return CompletableFuture.completedFuture(local);
+        }
+        String lockKey = lockKeyPrefix + id;
+        //写回:查不到写空值,查到了写逻辑过期数据,都带上查库前的版本号
+        BiFunction<R, Long, Mono<Boolean>> writer = (r, version) -> r == null
+                ? setIfNotStale(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, key, version, null, CACHE_NULL_TTL, TimeUnit.MINUTES)
+                : setWithLogicalExpireIfNotStale(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, key, version, r, time, unit);
+        //1.从redis查询
+        return getRaw(key).toFuture().thenCompose(raw -> {
+            nearCache.recordL2(keyPrefix, raw.isPresent());
+            //2.未命中,加锁加载一次
+            if (!raw.isPresent()){
+                return singleFlight.executeAsync(key, () -> {
+                    Timer.Sample sample = cacheMetrics.startRebuild();
+                    return rebuildWithMutex(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, key, lockKey,
+                            bytes -> cacheCodecs.<R>decodeLogical(keyPrefix, bytes, type).getData(),
+                            load(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, id, dbFallback), writer)
+                            .doFinally(s -> cacheMetrics.stopRebuild(sample, keyPrefix, CacheMetrics.LOGICAL_EXPIRE))
+                            .toFuture();
+                });
+            }
+            if (raw.get().length == 0){
+                //命中空值
+                cacheMetrics.request(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, CacheMetrics.NULL_HIT);
+                return CompletableFuture.completedFuture(null);
+            }
+            //3.命中,判断是否过期
+            RedisData<R> redisData = cacheCodecs.decodeLogical(keyPrefix, raw.get(), type);
+            R r = redisData.getData();
+            if (redisData.getExpireTime().isAfter(LocalDateTime.now())){
+                //3.1.未过期,直接返回
+                cacheMetrics.request(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, CacheMetrics.HIT);
+                putLocal(keyPrefix, key, r);
+                return CompletableFuture.completedFuture(r);
+            }
+            //3.2.已过期,后台重建(同一个key只重建一次),先返回旧数据
+            cacheMetrics.request(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, CacheMetrics.STALE);
+            singleFlight.submitAsyncIfAbsent(key, () -> refreshLogical(keyPrefix, key, lockKey, id, dbFallback, writer).toFuture());
+            return CompletableFuture.completedFuture(r);
+        });
+    }
+
+    /**
+     * 过期数据的后台重建,抢不到锁说明其它实例在重建,直接放弃
+     */
+    private <R,ID> Mono<R> refreshLogical(String keyPrefix, String key, String lockKey, ID id, Function<ID,R> dbFallback,
+                                          BiFunction<R, Long, Mono<Boolean>> writer){
+        return tryLock(lockKey).flatMap(locked -> {
+            if (!locked){
+                cacheMetrics.lockFailure(keyPrefix, CacheMetrics.LOGICAL_EXPIRE);
+                return Mono.<R>empty();
+            }
+            Timer.Sample sample = cacheMetrics.startRebuild();
+            Function<ID,R> timedDb = cacheMetrics.timedDb(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, dbFallback);
+            //查库之前先读版本号,期间数据被更新过则放弃写入
+            return cacheVersions.currentAsync(key)
+                    .flatMap(version -> Mono.fromCallable(() -> Optional.ofNullable(timedDb.apply(id)))
+                            .subscribeOn(dbScheduler)
+                            .flatMap(r -> writer.apply(r.orElse(null), version).then(Mono.justOrEmpty(r))))
+                    .doFinally(s -> {
+                        cacheMetrics.stopRebuild(sample, keyPrefix, CacheMetrics.LOGICAL_EXPIRE);
+                        unlock(lockKey);
+                    });
+        }).onErrorResume(e -> {
+            log.error("缓存重建失败,lockKey={}", lockKey, e);
+            return Mono.empty();
+        });
+    }
+
+    /**
+     * 互斥锁重建缓存.抢不到锁时延迟50ms看缓存是否已经写好,没写好继续抢锁
+     *
+     * @param loader 查库,被布隆过滤器拦截时为空,查不到时为Optional.empty()
+     * @param writer 把查库结果和查库前读到的版本号写回redis(结果为null时负责写空值)
+     */
+    private <R> Mono<R> rebuildWithMutex(String keyPrefix, String strategy, String key, String lockKey,
+                                         Function<byte[],R> decoder, Mono<Optional<R>> loader,
+                                         BiFunction<R, Long, Mono<Boolean>> writer){
+        return tryLock(lockKey).flatMap(locked -> {
+            if (!locked){
+                cacheMetrics.lockFailure(keyPrefix, strategy);
+                return Mono.delay(Duration.ofMillis(50))
+                        .then(getRaw(key))
+                        .flatMap(raw -> raw.isPresent()
+                                ? decodeRebuilt(keyPrefix, key, raw.get(), decoder)
+                                : rebuildWithMutex(keyPrefix, strategy, key, lockKey, decoder, loader, writer));
+            }
+            //拿到锁后再查一次缓存,可能刚好被别的实例重建完
+            return getRaw(key)
+                    .flatMap(raw -> raw.isPresent()
+                            ? decodeRebuilt(keyPrefix, key, raw.get(), decoder)
+                            : cacheVersions.currentAsync(key)
+                                    .flatMap(version -> loader.flatMap(r -> writer.apply(r.orElse(null), version)
+                                            .flatMap(written -> putLocalIfWritten(keyPrefix, key, written, r)))))
+                    .doFinally(s -> unlock(lockKey));
+        });
+    }
+
+    /**
+     * 布隆过滤器判断和查库都是阻塞调用,一起放到查库线程池执行
+     *
+     * @return 被布隆过滤器拦截时为空,查不到时为Optional.empty()
+     */
+    private <R,ID> Mono<Optional<R>> load(String keyPrefix, String strategy, ID id, Function<ID,R> dbFallback){
+        Function<ID,R> timedDb = cacheMetrics.timedDb(keyPrefix, strategy, dbFallback);
+        return Mono.fromCallable(() -> {
+            if (!bloomFilterRegistry.mightContain(keyPrefix, id)){
+                cacheMetrics.request(keyPrefix, strategy, CacheMetrics.BLOOM_REJECT);
+                return null;
+            }
+            cacheMetrics.request(keyPrefix, strategy, CacheMetrics.MISS);
+            return Optional.ofNullable(timedDb.apply(id));
+        }).subscribeOn(dbScheduler);
+    }
+
+    private <R> Mono<R> decodeHit(String keyPrefix, String strategy, String key, byte[] raw, Function<byte[],R> decoder){
+        if (raw.length == 0){
+            //命中空值
+            cacheMetrics.request(keyPrefix, strategy, CacheMetrics.NULL_HIT);
+            return Mono.empty();
+        }
+        cacheMetrics.request(keyPrefix, strategy, CacheMetrics.HIT);
+        R r = decoder.apply(raw);
+        putLocal(keyPrefix, key, r);
+        return Mono.just(r);
+    }
+
+    private <R> Mono<R> decodeRebuilt(String keyPrefix, String key, byte[] raw, Function<byte[],R> decoder){
+        if (raw.length == 0){
+            return Mono.empty();
+        }
+        R r = decoder.apply(raw);
+        putLocal(keyPrefix, key, r);
+        return Mono.just(r);
+    }
+
+    /**
+     * 查询redis,未命中时为Optional.empty()
+     */
+    private Mono<Optional<byte[]>> getRaw(String key){
+        return reactiveCacheRedisTemplate.opsForValue().get(key)
+                .map(Optional::of)
+                .defaultIfEmpty(Optional.empty());
+    }
+
+    /**
+     * 带版本号写入,value为null时写空值
+     */
+    private Mono<Boolean> setIfNotStale(String keyPrefix, String strategy, String key, long version,
+                                        Object value, Long time, TimeUnit unit){
+        long seconds = cacheTtlPolicy.resolveSeconds(key, time, unit);
+        byte[] bytes = value == null ? NULL_VALUE : cacheCodecs.encode(keyPrefix, value);
+        return cacheVersions.setIfNotStaleAsync(key, version, bytes, seconds)
+                .doOnNext(written -> checkWritten(keyPrefix, strategy, written));
+    }
+
+    private Mono<Boolean> setWithLogicalExpireIfNotStale(String keyPrefix, String strategy, String key, long version,
+                                                         Object value, Long time, TimeUnit unit){
+        RedisData<Object> redisData = new RedisData<>();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.now().plusSeconds(cacheTtlPolicy.resolveSeconds(key, time, unit)));
+        long expireAt = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        return cacheVersions.setLogicalIfNotStaleAsync(key, version, cacheCodecs.encode(keyPrefix, redisData), expireAt)
+                .doOnNext(written -> checkWritten(keyPrefix, strategy, written));
+    }
+
+    private void checkWritten(String keyPrefix, String strategy, boolean written){
+        if (!written){
+            cacheMetrics.writeRejected(keyPrefix, strategy);
+        }
+    }
+
+    /**
+     * 写入成功才放进本地缓存,被拒绝说明查到的已经是旧数据
+     */
+    private <R> Mono<R> putLocalIfWritten(String keyPrefix, String key, boolean written, Optional<R> r){
+        if (written){
+            r.ifPresent(value -> putLocal(keyPrefix, key, value));
+        }
+        return Mono.justOrEmpty(r);
+    }
+
+    private Mono<Boolean> tryLock(String key){
+        return reactiveCacheRedisTemplate.opsForValue().setIfAbsent(key, LOCK_VALUE, Duration.ofSeconds(10))
+                .defaultIfEmpty(false);
+    }
+
+    private void unlock(String key){
+        reactiveCacheRedisTemplate.delete(key).subscribe(null,
+                e -> log.warn("释放锁失败,等待自动过期,lockKey={}", key, e));
+    }
+
+    private <R> R getLocal(String keyPrefix, String key){
+        hotKeyDetector.record(key);
+        R pinned = nearCache.getPinned(key);
+        if (pinned != null){
+            return pinned;
+        }
+        return nearCache.get(keyPrefix, key);
+    }
+
+    private void putLocal(String keyPrefix, String key, Object value){
+        nearCache.put(keyPrefix, key, value);
+        if (hotKeyDetector.isHot(key)){
+            nearCache.pin(key, value);
+        }
+    }
+}
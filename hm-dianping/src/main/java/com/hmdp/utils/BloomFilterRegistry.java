@@ -0,0 +1,142 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.BLOOM_KEY_PREFIX;
+
+/**
+ * 按key前缀管理布隆过滤器.
+ * 过滤器在启动加载完成(markReady)之前不做拦截,避免误把存在的数据当成不存在.
+ * 估算误判率要BITCOUNT整个bitmap,只在加载完成时和定时任务里计算,指标读取上次的结果
+ * @author king
+ */
+@Slf4j
+@Component
+public class BloomFilterRegistry {
+
+    private final Map<String, RedisBloomFilter> filters = new ConcurrentHashMap<>();
+    private final Set<String> ready = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 前缀 -> 上次估算的误判率
+     */
+    private final Map<String, Double> estimatedFpps = new ConcurrentHashMap<>();
+
+    public BloomFilterRegistry(StringRedisTemplate stringRedisTemplate, MeterRegistry meterRegistry,
+                               CacheProperties cacheProperties) {
+        CacheProperties.Bloom bloom = cacheProperties.getBloom();
+        if (!bloom.isEnabled()) {
+            return;
+        }
+        for (CacheProperties.BloomSpec spec : bloom.getSpecs()) {
+            String prefix = spec.getPrefix();
+            RedisBloomFilter filter = new RedisBloomFilter(BLOOM_KEY_PREFIX + prefix,
+                    spec.getExpectedInsertions(), spec.getFpp(), stringRedisTemplate);
+            filters.put(prefix, filter);
+            log.info("布隆过滤器[{}]: 预计元素{}个, 期望误判率{}, {}位, {}次哈希, 占用内存{}KB",
+                    prefix, spec.getExpectedInsertions(), spec.getFpp(),
+                    filter.getNumBits(), filter.getNumHashes(), filter.memoryBytes() / 1024);
+            Gauge.builder("cache.bloom.memory.bytes", filter, RedisBloomFilter::memoryBytes)
+                    .tag("prefix", prefix).register(meterRegistry);
+            Gauge.builder("cache.bloom.fpp.expected", spec, CacheProperties.BloomSpec::getFpp)
+                    .tag("prefix", prefix).register(meterRegistry);
+            Gauge.builder("cache.bloom.fpp.estimated", estimatedFpps, m -> m.getOrDefault(prefix, 0.0))
+                    .tag("prefix", prefix).register(meterRegistry);
+        }
+    }
+
+    /**
+     * 是否为这个前缀配置了过滤器
+     */
+    public boolean hasFilter(String keyPrefix) {
+        return filters.containsKey(keyPrefix);
+    }
+
+    /**
+     * 没有过滤器或者过滤器还没加载完时一律返回true
+     */
+    public boolean mightContain(String keyPrefix, Object id) {
+        RedisBloomFilter filter = filters.get(keyPrefix);
+        if (filter == null || !ready.contains(keyPrefix)) {
+            return true;
+        }
+        return filter.mightContain(id);
+    }
+
+    /**
+     * 批量判断,只保留可能存在的id,一次pipeline完成
+     */
+    public <ID> List<ID> filterMightContain(String keyPrefix, List<ID> ids) {
+        RedisBloomFilter filter = filters.get(keyPrefix);
+        if (filter == null || !ready.contains(keyPrefix) || ids.isEmpty()) {
+            return ids;
+        }
+        boolean[] contains = filter.mightContainAll(ids);
+        List<ID> result = new ArrayList<>(ids.size());
+        for (int i = 0; i < contains.length; i++) {
+            if (contains[i]) {
+                result.add(ids.get(i));
+            }
+        }
+        return result;
+    }
+
+    public void put(String keyPrefix, Object id) {
+        RedisBloomFilter filter = filters.get(keyPrefix);
+        if (filter != null) {
+            filter.put(id);
+        }
+    }
+
+    public void putAll(String keyPrefix, Collection<?> ids) {
+        RedisBloomFilter filter = filters.get(keyPrefix);
+        if (filter != null) {
+            filter.putAll(ids);
+        }
+    }
+
+    /**
+     * 全量数据已经写入,开始拦截
+     */
+    public void markReady(String keyPrefix) {
+        RedisBloomFilter filter = filters.get(keyPrefix);
+        if (filter == null) {
+            return;
+        }
+        ready.add(keyPrefix);
+        log.info("布隆过滤器[{}]加载完成, 当前估算误判率{}", keyPrefix, estimateFpp(keyPrefix, filter));
+    }
+
+    /**
+     * 定时重新估算误判率
+     */
+    @Scheduled(fixedDelayString = "#{@cacheProperties.bloom.fppRefresh.toMillis()}")
+    public void refreshEstimatedFpp() {
+        filters.forEach((prefix, filter) -> {
+            try {
+                estimateFpp(prefix, filter);
+            } catch (Exception e) {
+                log.warn("估算布隆过滤器[{}]误判率失败", prefix, e);
+            }
+        });
+    }
+
+    private double estimateFpp(String keyPrefix, RedisBloomFilter filter) {
+        double fpp = filter.estimatedFpp();
+        estimatedFpps.put(keyPrefix, fpp);
+        return fpp;
+    }
+}
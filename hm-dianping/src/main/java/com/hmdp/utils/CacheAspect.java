@@ -0,0 +1,237 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.service.ICacheOutboxService;
+import lombok.extern.slf4j.Slf4j;
+import org.aspectj.lang.JoinPoint;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.AfterReturning;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.core.DefaultParameterNameDiscoverer;
+import org.springframework.core.ParameterNameDiscoverer;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.SpelCompilerMode;
+import org.springframework.expression.spel.SpelParserConfiguration;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.ReflectionUtils;
+
+import javax.annotation.Resource;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@link HmdpCached}和{@link HmdpCacheEvict}的实现.
+ * 注解、返回值类型、key表达式在每个方法第一次调用时解析一次并缓存,
+ * 之后每次调用只做取参数/求值,不再反射;key是单个参数(#id、#p0或省略)时直接按下标取参数,不走SpEL,
+ * 其它表达式把参数引用改写成参数数组的下标后编译成字节码,每次调用不再创建EvaluationContext.
+ * LOGICAL_EXPIRE的后台重建在cache-rebuild线程池里执行,这时原来的调用已经返回,
+ * 所以不重放连接点,而是用方法第一次调用时生成的MethodHandle直接调用目标对象
+ * @author king
+ */
+@Slf4j
+@Aspect
+@Component
+public class CacheAspect {
+
+    private static final Pattern PARAM_INDEX = Pattern.compile("#p(\\d+)");
+    private static final Pattern PARAM_NAME = Pattern.compile("#(\\w+)");
+
+    private static final SpelExpressionParser PARSER = new SpelExpressionParser(
+            new SpelParserConfiguration(SpelCompilerMode.IMMEDIATE, CacheAspect.class.getClassLoader()));
+    private static final ParameterNameDiscoverer NAME_DISCOVERER = new DefaultParameterNameDiscoverer();
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private ICacheOutboxService cacheOutboxService;
+
+    private final Map<Method, CachedOperation> cachedOperations = new ConcurrentHashMap<>();
+    private final Map<Method, EvictOperation> evictOperations = new ConcurrentHashMap<>();
+
+    @Around("@annotation(cached)")
+    public Object cached(ProceedingJoinPoint pjp, HmdpCached cached) throws Throwable {
+        Method method = ((MethodSignature) pjp.getSignature()).getMethod();
+        CachedOperation op = cachedOperations.computeIfAbsent(method, m -> new CachedOperation(m, cached));
+        Object id = op.key.resolve(pjp.getArgs());
+        if (id == null) {
+            //没有key无法缓存,直接执行
+            return pjp.proceed();
+        }
+        switch (op.strategy) {
+            case MUTEX:
+                return cacheClient.queryWithMutes(op.prefix, op.lockPrefix, id, op.returnType,
+                        ignored -> proceed(pjp), op.ttl, op.unit);
+            case LOGICAL_EXPIRE:
+                //后台重建时连接点已经结束,只带上目标对象和参数
+                Object target = pjp.getTarget();
+                Object[] args = pjp.getArgs().clone();
+                return cacheClient.queryWithLogicalExpire(op.prefix, op.lockPrefix, id, op.returnType,
+                        ignored -> invoke(op.invoker, target, args), op.ttl, op.unit);
+            default:
+                return cacheClient.queryWithPassThrough(op.prefix, id, op.returnType,
+                        ignored -> proceed(pjp), op.ttl, op.unit);
+        }
+    }
+
+    @AfterReturning("@annotation(evict)")
+    public void evict(JoinPoint jp, HmdpCacheEvict evict) {
+        Method method = ((MethodSignature) jp.getSignature()).getMethod();
+        EvictOperation op = evictOperations.computeIfAbsent(method, m -> new EvictOperation(m, evict));
+        Object id = op.key.resolve(jp.getArgs());
+        if (id == null) {
+            return;
+        }
+        String key = op.prefix + id;
+        if (TransactionSynchronizationManager.isActualTransactionActive()) {
+            //在事务中,和业务数据一起提交,提交后由发件箱删除
+            cacheOutboxService.record(Collections.singletonList(key));
+        } else {
+            cacheClient.evict(key);
+        }
+    }
+
+    private static Object proceed(ProceedingJoinPoint pjp) {
+        try {
+            return pjp.proceed();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new UndeclaredThrowableException(e);
+        }
+    }
+
+    private static Object invoke(MethodHandle invoker, Object target, Object[] args) {
+        try {
+            return (Object) invoker.invokeExact(target, args);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new UndeclaredThrowableException(e);
+        }
+    }
+
+    /**
+     * 生成 (target, args[]) -> 返回值 的MethodHandle
+     */
+    private static MethodHandle invoker(Method method) {
+        ReflectionUtils.makeAccessible(method);
+        try {
+            MethodHandle handle = MethodHandles.lookup().unreflect(method);
+            return handle.asType(handle.type().generic())
+                    .asSpreader(Object[].class, method.getParameterCount());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("无法访问缓存方法: " + method, e);
+        }
+    }
+
+    /**
+     * 根据参数求出key
+     */
+    private interface KeyResolver {
+        Object resolve(Object[] args);
+    }
+
+    private static KeyResolver keyResolver(Method method, String expression) {
+        if (method.getParameterCount() == 0) {
+            throw new IllegalStateException("缓存方法必须有参数: " + method);
+        }
+        if (StrUtil.isBlank(expression)) {
+            return args -> args[0];
+        }
+        String[] names = NAME_DISCOVERER.getParameterNames(method);
+        //单个参数,直接按下标取
+        Matcher matcher = PARAM_NAME.matcher(expression);
+        if (matcher.matches()) {
+            int index = indexOf(matcher.group(1), names);
+            if (index >= 0) {
+                return args -> args[index];
+            }
+        }
+        //其它情况走SpEL,以参数数组为根对象,表达式只解析一次,第一次求值后编译成字节码
+        Expression parsed = PARSER.parseExpression(toArgsIndex(expression, names));
+        return args -> parsed.getValue((Object) args);
+    }
+
+    /**
+     * 把#p0、#参数名改写成参数数组的下标[0],例如 #voucher.shopId -> [0].shopId;#root等其它变量不变
+     */
+    private static String toArgsIndex(String expression, String[] names) {
+        Matcher matcher = PARAM_NAME.matcher(expression);
+        StringBuffer sb = new StringBuffer();
+        while (matcher.find()) {
+            int index = indexOf(matcher.group(1), names);
+            String replacement = index < 0 ? matcher.group() : "[" + index + "]";
+            matcher.appendReplacement(sb, Matcher.quoteReplacement(replacement));
+        }
+        matcher.appendTail(sb);
+        return sb.toString();
+    }
+
+    /**
+     * #p0按位置、#参数名按名字找到参数下标,不是参数时返回-1
+     */
+    private static int indexOf(String name, String[] names) {
+        Matcher matcher = PARAM_INDEX.matcher("#" + name);
+        if (matcher.matches()) {
+            return Integer.parseInt(matcher.group(1));
+        }
+        if (names != null) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i].equals(name)) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static class CachedOperation {
+        private final String prefix;
+        private final String lockPrefix;
+        private final Type returnType;
+        private final long ttl;
+        private final TimeUnit unit;
+        private final CacheStrategy strategy;
+        private final KeyResolver key;
+        private final MethodHandle invoker;
+
+        CachedOperation(Method method, HmdpCached cached) {
+            if (method.getReturnType().isPrimitive()) {
+                throw new IllegalStateException("@HmdpCached不支持基本类型返回值: " + method);
+            }
+            this.prefix = cached.prefix();
+            this.lockPrefix = StrUtil.isBlank(cached.lockPrefix()) ? "lock:" + cached.prefix() : cached.lockPrefix();
+            this.returnType = method.getGenericReturnType();
+            this.ttl = cached.ttl();
+            this.unit = cached.unit();
+            this.strategy = cached.strategy();
+            this.key = keyResolver(method, cached.key());
+            this.invoker = strategy == CacheStrategy.LOGICAL_EXPIRE ? invoker(method) : null;
+        }
+    }
+
+    private static class EvictOperation {
+        private final String prefix;
+        private final KeyResolver key;
+
+        EvictOperation(Method method, HmdpCacheEvict evict) {
+            this.prefix = evict.prefix();
+            this.key = keyResolver(method, evict.key());
+        }
+    }
+}
@@ -1,19 +1,29 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.entity.Shop;
+import com.hmdp.config.CacheProperties;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import java.lang.reflect.Type;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -25,15 +35,71 @@ import static com.hmdp.utils.RedisConstants.*;
 @Component
 public class CacheClient {
 
+    private static final byte[] NULL_VALUE = new byte[0];
+
     private StringRedisTemplate stringRedisTemplate;
 
+    private RedisTemplate<String, byte[]> cacheRedisTemplate;
+
+    private CacheCodecs cacheCodecs;
+
+    private NearCache nearCache;
+
+    private SingleFlight singleFlight;
+
+    private BloomFilterRegistry bloomFilterRegistry;
+
+    private CacheProperties cacheProperties;
+
+    private CacheTtlPolicy cacheTtlPolicy;
+
+    private HotKeyDetector hotKeyDetector;
+
+    private CacheMetrics cacheMetrics;
+
+    private CacheVersions cacheVersions;
+
+    private RefreshAheadRegistry refreshAheadRegistry;
+
+    //逻辑过期缓存击穿,后台重建用的线程池
+    private ExecutorService cacheRebuildExecutor;
+
     /**
      * Instantiates a new Cache client.
      *
      * @param stringRedisTemplate the string redis template
+     * @param cacheRedisTemplate  the cache redis template
+     * @param cacheCodecs         the cache codecs
+     * @param nearCache           the near cache
+     * @param singleFlight        the single flight
+     * @param bloomFilterRegistry the bloom filter registry
+     * @param cacheProperties     the cache properties
+     * @param cacheTtlPolicy      the cache ttl policy
+     * @param hotKeyDetector      the hot key detector
+     * @param cacheMetrics        the cache metrics
+     * @param cacheVersions       the cache versions
+     * @param refreshAheadRegistry the refresh ahead registry
+     * @param executorRegistry    the executor registry
      */
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    public CacheClient(StringRedisTemplate stringRedisTemplate, RedisTemplate<String, byte[]> cacheRedisTemplate,
+                       CacheCodecs cacheCodecs, NearCache nearCache, SingleFlight singleFlight,
+                       BloomFilterRegistry bloomFilterRegistry, CacheProperties cacheProperties,
+                       CacheTtlPolicy cacheTtlPolicy, HotKeyDetector hotKeyDetector,
+                       CacheMetrics cacheMetrics, CacheVersions cacheVersions,
+                       RefreshAheadRegistry refreshAheadRegistry, ExecutorRegistry executorRegistry) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.cacheRedisTemplate = cacheRedisTemplate;
+        this.cacheCodecs = cacheCodecs;
+        this.nearCache = nearCache;
+        this.singleFlight = singleFlight;
+        this.bloomFilterRegistry = bloomFilterRegistry;
+        this.cacheProperties = cacheProperties;
+        this.cacheTtlPolicy = cacheTtlPolicy;
+        this.hotKeyDetector = hotKeyDetector;
+        this.cacheMetrics = cacheMetrics;
+        this.cacheVersions = cacheVersions;
+        this.refreshAheadRegistry = refreshAheadRegistry;
+        this.cacheRebuildExecutor = executorRegistry.executor(ExecutorRegistry.CACHE_REBUILD);
     }
 
 
@@ -47,11 +113,96 @@ public class CacheClient {
      */
     //写入
     public void set(String key, Object value, Long time, TimeUnit timeUnit){
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value),time,timeUnit);
+        //TTL加随机抖动并限制每秒过期数量,防止雪崩
+        long seconds = cacheTtlPolicy.resolveSeconds(key, time, timeUnit);
+        cacheRedisTemplate.opsForValue().set(key, encode(prefixOf(key), value),seconds,TimeUnit.SECONDS);
+    }
+
+    /**
+     * 重建时写回:带上查库前读到的版本号,期间数据被更新过则放弃写入
+     *
+     * @return 是否写入
+     */
+    private boolean setIfNotStale(String keyPrefix, String strategy, String key, long version,
+                                  Object value, Long time, TimeUnit timeUnit){
+        long seconds = cacheTtlPolicy.resolveSeconds(key, time, timeUnit);
+        return checkWritten(keyPrefix, strategy, cacheVersions.setIfNotStale(key, version, encode(keyPrefix, value), seconds));
+    }
+
+    /**
+     * 重建时写回逻辑过期数据,版本号语义同setIfNotStale
+     */
+    private boolean setWithLogicalExpireIfNotStale(String keyPrefix, String strategy, String key, long version,
+                                                   Object value, Long time, TimeUnit timeUnit){
+        RedisData<Object> redisData = logicalData(key, value, time, timeUnit);
+        return checkWritten(keyPrefix, strategy, cacheVersions.setLogicalIfNotStale(key, version,
+                cacheCodecs.encode(keyPrefix, redisData), toEpochMilli(redisData.getExpireTime())));
+    }
+
+    private RedisData<Object> logicalData(String key, Object value, Long time, TimeUnit timeUnit){
+        RedisData<Object> redisData = new RedisData<>();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.now().plusSeconds(cacheTtlPolicy.resolveSeconds(key, time, timeUnit)));
+        return redisData;
+    }
+
+    /**
+     * 只有完整key的接口用最后一个冒号之前的部分作为前缀,例如 cache:shop:1 -> cache:shop:
+     */
+    private static String prefixOf(String key){
+        return key.substring(0, key.lastIndexOf(':') + 1);
+    }
+
+    private static long toEpochMilli(LocalDateTime time){
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private boolean checkWritten(String keyPrefix, String strategy, boolean written){
+        if (!written){
+            cacheMetrics.writeRejected(keyPrefix, strategy);
+        }
+        return written;
+    }
+
+    /**
+     * 编码,空字符串作为空值标记写成空字节
+     */
+    private byte[] encode(String keyPrefix, Object value){
+        if ("".equals(value)){
+            return NULL_VALUE;
+        }
+        return cacheCodecs.encode(keyPrefix, value);
+    }
+
+    /**
+     * 查本地缓存并采样统计访问次数,热点key先查钉在本地的副本
+     */
+    private <R> R getLocal(String keyPrefix, String key){
+        hotKeyDetector.record(key);
+        R pinned = nearCache.getPinned(key);
+        if (pinned != null){
+            return pinned;
+        }
+        return nearCache.get(keyPrefix, key);
+    }
+
+    /**
+     * 写本地缓存,热点key同时钉到本地
+     */
+    private void putLocal(String keyPrefix, String key, Object value){
+        nearCache.put(keyPrefix, key, value);
+        if (hotKeyDetector.isHot(key)){
+            nearCache.pin(key, value);
+        }
+    }
+
+    private byte[] getRaw(String key){
+        return cacheRedisTemplate.opsForValue().get(key);
     }
 
     /**
      * Set with logical expire.
+     * 直接覆盖,不校验版本号;数据来自数据库时用 {@link #loadWithLogicalExpire}
      *
      * @param key      the key
      * @param value    the value
@@ -61,11 +212,165 @@ public class CacheClient {
     //设置逻辑过期时间并写入redis
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit timeUnit){
         //设置逻辑过期时间
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(timeUnit.toSeconds(time)));
+        RedisData<Object> redisData = logicalData(key, value, time, timeUnit);
 
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        cacheRedisTemplate.opsForValue().set(key, cacheCodecs.encode(prefixOf(key), redisData));
+        refreshAheadRegistry.track(key, toEpochMilli(redisData.getExpireTime()));
+    }
+
+    /**
+     * 查库并写入逻辑过期数据:查库之前先读版本号,期间被删除过(数据被更新)则放弃写入
+     *
+     * @param key      the key
+     * @param loader   查库
+     * @param time     the time
+     * @param timeUnit the time unit
+     * @return 是否写入,查不到数据时也返回false
+     */
+    public <R> boolean loadWithLogicalExpire(String key, Supplier<R> loader, Long time, TimeUnit timeUnit){
+        long version = cacheVersions.current(key);
+        R r = loader.get();
+        if (r == null){
+            return false;
+        }
+        RedisData<Object> redisData = logicalData(key, r, time, timeUnit);
+        return cacheVersions.setLogicalIfNotStale(key, version, cacheCodecs.encode(prefixOf(key), redisData),
+                toEpochMilli(redisData.getExpireTime()));
+    }
+
+    /**
+     * 批量查库并写入逻辑过期数据,预热用:一次MGET读版本号,再一次查库,带版本号用一个pipeline写回.
+     * 版本号在查库之前读取,查库之后缓存被删除过的key不写,删除之前的快照不会一直留到逻辑过期
+     *
+     * @param keyPrefix  the key prefix
+     * @param ids        这一批的id
+     * @param dbFallback 批量查库,返回 id -> 数据
+     * @param time       the time
+     * @param timeUnit   the time unit
+     * @return 写入的条数
+     */
+    public <R,ID> int loadWithLogicalExpireBatch(String keyPrefix, List<ID> ids, Function<List<ID>, Map<ID,R>> dbFallback,
+                                                 Long time, TimeUnit timeUnit){
+        if (ids.isEmpty()){
+            return 0;
+        }
+        List<String> keys = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            keys.add(keyPrefix + id);
+        }
+        //1.查库之前先读版本号
+        List<Long> versions = cacheVersions.currentAll(keys);
+        //2.一次查库
+        Map<ID,R> loaded = dbFallback.apply(ids);
+        if (loaded == null || loaded.isEmpty()){
+            return 0;
+        }
+        //3.一个pipeline带版本号写回,写入成功的同时记录提前刷新的过期时间
+        List<String> writeKeys = new ArrayList<>(loaded.size());
+        List<Long> writeVersions = new ArrayList<>(loaded.size());
+        List<byte[]> values = new ArrayList<>(loaded.size());
+        List<Long> expireAts = new ArrayList<>(loaded.size());
+        for (int i = 0; i < ids.size(); i++) {
+            R r = loaded.get(ids.get(i));
+            if (r == null){
+                continue;
+            }
+            RedisData<Object> redisData = logicalData(keys.get(i), r, time, timeUnit);
+            writeKeys.add(keys.get(i));
+            writeVersions.add(versions.get(i));
+            values.add(cacheCodecs.encode(keyPrefix, redisData));
+            expireAts.add(toEpochMilli(redisData.getExpireTime()));
+        }
+        int count = 0;
+        for (boolean written : cacheVersions.setAllLogicalIfNotStale(writeKeys, writeVersions, values, expireAts)) {
+            if (written){
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 定时提前刷新一批逻辑过期数据:一次查库,带版本号用一个pipeline写回,
+     * 写入成功的同时更新提前刷新zset里的过期时间;数据库里已经没有的id不再跟踪
+     *
+     * @param <R>        the type parameter
+     * @param <ID>       the type parameter
+     * @param spec       注册的前缀
+     * @param ids        这一批要刷新的id
+     * @return 写入的条数
+     */
+    public <R,ID> int refreshLogicalBatch(RefreshAheadRegistry.Spec<ID,R> spec, List<ID> ids){
+        if (ids.isEmpty()){
+            return 0;
+        }
+        String keyPrefix = spec.getKeyPrefix();
+        List<String> keys = new ArrayList<>(ids.size());
+        for (ID id : ids) {
+            keys.add(keyPrefix + id);
+        }
+        Timer.Sample sample = cacheMetrics.startRebuild();
+        //1.查库之前先读版本号
+        List<Long> versions = cacheVersions.currentAll(keys);
+        //2.一次查库
+        Map<ID,R> loaded = cacheMetrics.timedDb(keyPrefix, CacheMetrics.REFRESH_AHEAD, spec.getDbFallback()).apply(ids);
+        if (loaded == null){
+            loaded = Collections.emptyMap();
+        }
+        //3.一个pipeline写回,查不到的不再跟踪
+        List<String> writeKeys = new ArrayList<>(ids.size());
+        List<Long> writeVersions = new ArrayList<>(ids.size());
+        List<byte[]> values = new ArrayList<>(ids.size());
+        List<Long> expireAts = new ArrayList<>(ids.size());
+        List<String> missing = new ArrayList<>();
+        for (int i = 0; i < ids.size(); i++) {
+            R r = loaded.get(ids.get(i));
+            if (r == null){
+                missing.add(spec.member(keys.get(i)));
+                continue;
+            }
+            RedisData<Object> redisData = logicalData(keys.get(i), r, spec.getTime(), spec.getUnit());
+            writeKeys.add(keys.get(i));
+            writeVersions.add(versions.get(i));
+            values.add(cacheCodecs.encode(keyPrefix, redisData));
+            expireAts.add(toEpochMilli(redisData.getExpireTime()));
+        }
+        refreshAheadRegistry.untrack(spec, missing);
+        int count = 0;
+        for (boolean written : cacheVersions.setAllLogicalIfNotStale(writeKeys, writeVersions, values, expireAts)) {
+            if (written){
+                count++;
+                cacheMetrics.request(keyPrefix, CacheMetrics.REFRESH_AHEAD, CacheMetrics.REFRESH);
+            } else {
+                //期间数据被更新过,留在zset里,领取超时后重新刷新
+                cacheMetrics.writeRejected(keyPrefix, CacheMetrics.REFRESH_AHEAD);
+            }
+        }
+        cacheMetrics.stopRebuild(sample, keyPrefix, CacheMetrics.REFRESH_AHEAD);
+        return count;
+    }
+
+    /**
+     * 删除缓存并把版本号加一,同时清掉所有实例的本地缓存
+     *
+     * @param key the key
+     */
+    public void evict(String key){
+        cacheVersions.bumpAndDelete(Collections.singletonList(key));
+        nearCache.invalidate(key);
+    }
+
+    /**
+     * 批量删除缓存并把版本号加一,一个pipeline完成,本地缓存的失效消息也用一个pipeline发出
+     *
+     * @param keys the keys
+     */
+    public void evictAll(Collection<String> keys){
+        if (keys.isEmpty()){
+            return;
+        }
+        cacheVersions.bumpAndDelete(keys);
+        nearCache.invalidateAll(keys);
     }
 
     /**
@@ -82,41 +387,252 @@ public class CacheClient {
      * @return the r
      */
     //缓存穿透
-    public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type,
+    public <R,ID> R queryWithPassThrough(String keyPrefix, ID id, Type type,
                                          Function<ID,R> dbFallback,Long time,TimeUnit unit){
 
         String key = keyPrefix + id;
+        //0.先查本地缓存
+        R local = getLocal(keyPrefix, key);
+        if (local != null){
+            cacheMetrics.request(keyPrefix, CacheMetrics.PASS_THROUGH, CacheMetrics.LOCAL_HIT);
+            return local;
+        }
+        //布隆过滤器判断不存在,直接返回,不查redis也不查库
+        if (!bloomFilterRegistry.mightContain(keyPrefix, id)){
+            cacheMetrics.request(keyPrefix, CacheMetrics.PASS_THROUGH, CacheMetrics.BLOOM_REJECT);
+            return null;
+        }
         //1.从redis查询商户缓存
-        String json = stringRedisTemplate.opsForValue().get(CACHE_SHOP_KEY + id);
+        byte[] raw = getRaw(key);
+        nearCache.recordL2(keyPrefix, raw != null);
         //2.判断是否存在
         //3.存在,直接返回
-        if (StrUtil.isNotBlank(json)){
-            return JSONUtil.toBean(json, type);
-        } else if (json!=null){ //判断命中的是否为空值
+        if (raw != null && raw.length > 0){
+            cacheMetrics.request(keyPrefix, CacheMetrics.PASS_THROUGH, CacheMetrics.HIT);
+            R r = cacheCodecs.decode(keyPrefix, raw, type);
+            putLocal(keyPrefix, key, r);
+            return r;
+        } else if (raw!=null){ //判断命中的是否为空值
             //没命中空值
+            cacheMetrics.request(keyPrefix, CacheMetrics.PASS_THROUGH, CacheMetrics.NULL_HIT);
             return null;
         }
         //4.不存在,根据id查询数据库
-
-        R r = dbFallback.apply(id);
+        cacheMetrics.request(keyPrefix, CacheMetrics.PASS_THROUGH, CacheMetrics.MISS);
+        Timer.Sample sample = cacheMetrics.startRebuild();
+        //查库之前先读版本号
+        long version = cacheVersions.current(key);
+        R r = cacheMetrics.timedDb(keyPrefix, CacheMetrics.PASS_THROUGH, dbFallback).apply(id);
 
         //5.没查到,返回错误
         if (r==null){
             //将空值写入redis
-            this.set(key,"",time,unit);
+            setIfNotStale(keyPrefix, CacheMetrics.PASS_THROUGH, key, version, "", time, unit);
             //stringRedisTemplate.opsForValue().set(key,"",time, unit);
+            cacheMetrics.stopRebuild(sample, keyPrefix, CacheMetrics.PASS_THROUGH);
             //返回错误信息
             return null;
         }
-        //6.查到了,写到redis里,添加TTL到期删除
-        this.set(key,r,time,unit);
+        //6.查到了,写到redis里,添加TTL到期删除;期间数据被更新过则不写,也不放进本地缓存
+        boolean written = setIfNotStale(keyPrefix, CacheMetrics.PASS_THROUGH, key, version, r, time, unit);
+        cacheMetrics.stopRebuild(sample, keyPrefix, CacheMetrics.PASS_THROUGH);
+        if (written){
+            putLocal(keyPrefix, key, r);
+        }
 
         return r;
     }
 
 
-    //逻辑过期缓存击穿
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    /**
+     * 批量查询,语义同queryWithPassThrough:
+     * 一次MGET查redis,未命中的id一次性交给dbFallback查库,再用一个pipeline写回(查不到的写空值)
+     *
+     * @param <R>        the type parameter
+     * @param <ID>       the type parameter
+     * @param keyPrefix  the key prefix
+     * @param ids        the ids
+     * @param type       the type
+     * @param dbFallback 根据一批id查库,返回 id -> 实体
+     * @param time       the time
+     * @param unit       the unit
+     * @return id -> 实体,顺序与ids一致,不存在的id不在结果中
+     */
+    public <R,ID> Map<ID,R> queryBatch(String keyPrefix, Collection<ID> ids, Type type,
+                                       Function<Collection<ID>, Map<ID,R>> dbFallback, Long time, TimeUnit unit){
+        return queryBatch(keyPrefix, ids, type, dbFallback, time, unit, false);
+    }
+
+    /**
+     * 批量查询逻辑过期数据,与queryWithLogicalExpire共用同一种缓存格式:
+     * 命中时不管是否过期都直接返回(过期数据由定时提前刷新或单个查询重建),
+     * 未命中的一次性查库,查到的写逻辑过期数据,查不到的写空值
+     *
+     * @param <R>        the type parameter
+     * @param <ID>       the type parameter
+     * @param keyPrefix  the key prefix
+     * @param ids        the ids
+     * @param type       the type
+     * @param dbFallback 根据一批id查库,返回 id -> 实体
+     * @param time       the time
+     * @param unit       the unit
+     * @return id -> 实体,顺序与ids一致,不存在的id不在结果中
+     */
+    public <R,ID> Map<ID,R> queryBatchWithLogicalExpire(String keyPrefix, Collection<ID> ids, Type type,
+                                                        Function<Collection<ID>, Map<ID,R>> dbFallback, Long time, TimeUnit unit){
+        return queryBatch(keyPrefix, ids, type, dbFallback, time, unit, true);
+    }
+
+    private <R,ID> Map<ID,R> queryBatch(String keyPrefix, Collection<ID> ids, Type type,
+                                        Function<Collection<ID>, Map<ID,R>> dbFallback, Long time, TimeUnit unit,
+                                        boolean logical){
+        if (ids == null || ids.isEmpty()){
+            return Collections.emptyMap();
+        }
+        //去重并保持顺序
+        List<ID> idList = new ArrayList<>(new LinkedHashSet<>(ids));
+        Map<ID,R> found = new LinkedHashMap<>(idList.size() * 2);
+        //0.先查本地缓存
+        List<ID> remoteIds = new ArrayList<>(idList.size());
+        for (ID id : idList) {
+            R local = getLocal(keyPrefix, keyPrefix + id);
+            if (local != null){
+                cacheMetrics.request(keyPrefix, CacheMetrics.BATCH, CacheMetrics.LOCAL_HIT);
+                found.put(id, local);
+            } else {
+                remoteIds.add(id);
+            }
+        }
+        //布隆过滤器一次性过滤掉一定不存在的id
+        int beforeBloom = remoteIds.size();
+        remoteIds = bloomFilterRegistry.filterMightContain(keyPrefix, remoteIds);
+        for (int i = remoteIds.size(); i < beforeBloom; i++) {
+            cacheMetrics.request(keyPrefix, CacheMetrics.BATCH, CacheMetrics.BLOOM_REJECT);
+        }
+        //1.一次MGET查redis
+        List<ID> missIds = new ArrayList<>();
+        if (!remoteIds.isEmpty()){
+            List<String> keys = new ArrayList<>(remoteIds.size());
+            for (ID id : remoteIds) {
+                keys.add(keyPrefix + id);
+            }
+            List<byte[]> raws = cacheRedisTemplate.opsForValue().multiGet(keys);
+            for (int i = 0; i < remoteIds.size(); i++) {
+                ID id = remoteIds.get(i);
+                byte[] raw = raws == null ? null : raws.get(i);
+                nearCache.recordL2(keyPrefix, raw != null);
+                if (raw != null && raw.length > 0){
+                    cacheMetrics.request(keyPrefix, CacheMetrics.BATCH, CacheMetrics.HIT);
+                    R r = logical ? cacheCodecs.<R>decodeLogical(keyPrefix, raw, type).getData() : cacheCodecs.decode(keyPrefix, raw, type);
+                    putLocal(keyPrefix, keys.get(i), r);
+                    found.put(id, r);
+                } else if (raw == null){
+                    //2.未命中(空值说明数据库里也没有,直接跳过)
+                    cacheMetrics.request(keyPrefix, CacheMetrics.BATCH, CacheMetrics.MISS);
+                    missIds.add(id);
+                } else {
+                    cacheMetrics.request(keyPrefix, CacheMetrics.BATCH, CacheMetrics.NULL_HIT);
+                }
+            }
+        }
+        if (missIds.isEmpty()){
+            return sortByIds(idList, found);
+        }
+        //3.未命中的一次性查库,查库之前先读版本号
+        Timer.Sample sample = cacheMetrics.startRebuild();
+        List<String> missKeys = new ArrayList<>(missIds.size());
+        for (ID id : missIds) {
+            missKeys.add(keyPrefix + id);
+        }
+        List<Long> versions = cacheVersions.currentAll(missKeys);
+        Map<ID,R> loaded = cacheMetrics.timedDb(keyPrefix, CacheMetrics.BATCH, dbFallback).apply(missIds);
+        if (loaded == null){
+            loaded = Collections.emptyMap();
+        }
+        //4.一个pipeline带版本号写回,查不到的写空值防止穿透
+        if (logical){
+            writeBackLogical(keyPrefix, missIds, missKeys, versions, loaded, found, time, unit);
+        } else {
+            List<byte[]> values = new ArrayList<>(missIds.size());
+            List<Long> seconds = new ArrayList<>(missIds.size());
+            for (int i = 0; i < missIds.size(); i++) {
+                R r = loaded.get(missIds.get(i));
+                values.add(r == null ? NULL_VALUE : cacheCodecs.encode(keyPrefix, r));
+                seconds.add(cacheTtlPolicy.resolveSeconds(missKeys.get(i), time, unit));
+            }
+            putWritten(keyPrefix, missIds, missKeys, loaded, found,
+                    cacheVersions.setAllIfNotStale(missKeys, versions, values, seconds));
+        }
+        cacheMetrics.stopRebuild(sample, keyPrefix, CacheMetrics.BATCH);
+        return sortByIds(idList, found);
+    }
+
+    /**
+     * 批量写回逻辑过期数据,查不到的按CACHE_NULL_TTL写空值
+     */
+    private <R,ID> void writeBackLogical(String keyPrefix, List<ID> missIds, List<String> missKeys, List<Long> versions,
+                                         Map<ID,R> loaded, Map<ID,R> found, Long time, TimeUnit unit){
+        List<ID> dataIds = new ArrayList<>(), nullIds = new ArrayList<>();
+        List<String> dataKeys = new ArrayList<>(), nullKeys = new ArrayList<>();
+        List<Long> dataVersions = new ArrayList<>(), nullVersions = new ArrayList<>();
+        List<byte[]> dataValues = new ArrayList<>(), nullValues = new ArrayList<>();
+        List<Long> expireAts = new ArrayList<>(), nullSeconds = new ArrayList<>();
+        for (int i = 0; i < missIds.size(); i++) {
+            R r = loaded.get(missIds.get(i));
+            String key = missKeys.get(i);
+            if (r == null){
+                nullIds.add(missIds.get(i));
+                nullKeys.add(key);
+                nullVersions.add(versions.get(i));
+                nullValues.add(NULL_VALUE);
+                nullSeconds.add(cacheTtlPolicy.resolveSeconds(key, CACHE_NULL_TTL, TimeUnit.MINUTES));
+            } else {
+                RedisData<Object> redisData = logicalData(key, r, time, unit);
+                dataIds.add(missIds.get(i));
+                dataKeys.add(key);
+                dataVersions.add(versions.get(i));
+                dataValues.add(cacheCodecs.encode(keyPrefix, redisData));
+                expireAts.add(toEpochMilli(redisData.getExpireTime()));
+            }
+        }
+        if (!dataIds.isEmpty()){
+            putWritten(keyPrefix, dataIds, dataKeys, loaded, found,
+                    cacheVersions.setAllLogicalIfNotStale(dataKeys, dataVersions, dataValues, expireAts));
+        }
+        if (!nullIds.isEmpty()){
+            putWritten(keyPrefix, nullIds, nullKeys, loaded, found,
+                    cacheVersions.setAllIfNotStale(nullKeys, nullVersions, nullValues, nullSeconds));
+        }
+    }
+
+    /**
+     * 查到的都返回,写入成功的才放进本地缓存
+     */
+    private <R,ID> void putWritten(String keyPrefix, List<ID> ids, List<String> keys, Map<ID,R> loaded,
+                                   Map<ID,R> found, boolean[] written){
+        for (int i = 0; i < written.length; i++) {
+            R r = loaded.get(ids.get(i));
+            if (r != null){
+                found.put(ids.get(i), r);
+            }
+            if (!written[i]){
+                cacheMetrics.writeRejected(keyPrefix, CacheMetrics.BATCH);
+            } else if (r != null){
+                putLocal(keyPrefix, keys.get(i), r);
+            }
+        }
+    }
+
+    private static <R,ID> Map<ID,R> sortByIds(List<ID> ids, Map<ID,R> found){
+        Map<ID,R> result = new LinkedHashMap<>(found.size() * 2);
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null){
+                result.put(id, r);
+            }
+        }
+        return result;
+    }
 
     /**
      * Query with logical expire r.
@@ -132,60 +648,170 @@ public class CacheClient {
      * @param unit          the unit
      * @return the r
      */
-    public <R,ID> R queryWithLogicalExpire(String keyPrefix,String lockKeyPrefix,ID id,Class<R> type,
+    public <R,ID> R queryWithLogicalExpire(String keyPrefix,String lockKeyPrefix,ID id,Type type,
                                            Function<ID,R> dbFallback,Long time,TimeUnit unit){
         String key = keyPrefix + id;
+        String lockKey = lockKeyPrefix +id;
+        //0.先查本地缓存
+        R local = getLocal(keyPrefix, key);
+        if (local != null){
+            cacheMetrics.request(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, CacheMetrics.LOCAL_HIT);
+            return local;
+        }
+        //写回:查不到写空值,查到了写逻辑过期数据,都带上查库前的版本号
+        VersionedWriter<R> writer = (r, version) -> r == null
+                ? setIfNotStale(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, key, version, "", CACHE_NULL_TTL, TimeUnit.MINUTES)
+                : setWithLogicalExpireIfNotStale(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, key, version, r, time, unit);
         //1.从redis查询商户缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] raw = getRaw(key);
+        nearCache.recordL2(keyPrefix, raw != null);
         //2.判断是否存在
-        if (StrUtil.isBlank(json)){
-            //3.未命中,返回空
+        if (raw == null){
+            //3.未命中(没有预热或者刚被删除),布隆过滤器判断可能存在时加互斥锁同步重建一次
+            if (!bloomFilterRegistry.mightContain(keyPrefix, id)){
+                cacheMetrics.request(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, CacheMetrics.BLOOM_REJECT);
+                return null;
+            }
+            cacheMetrics.request(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, CacheMetrics.MISS);
+            return singleFlight.execute(key, () -> cacheMetrics.recordRebuild(keyPrefix, CacheMetrics.LOGICAL_EXPIRE,
+                    () -> rebuildWithMutex(keyPrefix,CacheMetrics.LOGICAL_EXPIRE,key,lockKey,id,
+                    bytes -> cacheCodecs.<R>decodeLogical(keyPrefix, bytes, type).getData(),
+                    cacheMetrics.timedDb(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, dbFallback),
+                    writer)));
+        }
+        if (raw.length == 0){
+            //命中空值
+            cacheMetrics.request(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, CacheMetrics.NULL_HIT);
             return null;
         }
 
-        //4.命中,先把json反序列化成对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        //这里可以使用泛型,我不会
-        JSONObject data = (JSONObject) redisData.getData();
-        R r = JSONUtil.toBean(data, type);
+        //4.命中,一次解码成带类型的RedisData
+        RedisData<R> redisData = cacheCodecs.decodeLogical(keyPrefix, raw, type);
+        R r = redisData.getData();
         LocalDateTime expireTime = redisData.getExpireTime();
         //5.判断是否过期
         if (expireTime.isAfter(LocalDateTime.now())){
             //5.1.未过期,直接返回店铺信息
+            cacheMetrics.request(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, CacheMetrics.HIT);
+            putLocal(keyPrefix, key, r);
             return r;
         }
 
         //5.2.已过期,需要缓存重建
+        cacheMetrics.request(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, CacheMetrics.STALE);
 
         //6.缓存重建
 
-        //6.1.获取互斥锁
-        String lockKey = lockKeyPrefix +id;
-        //6.2.判断是否获取成功
-        boolean isLock = tryLock(lockKey);
-        if (isLock){
-            //6.3.成功,开启独立线程实现缓存重建
-            CACHE_REBUILD_EXECUTOR.submit(()->{
+        //6.1.本JVM内同一个key只提交一次重建,已经在重建就直接返回旧数据
+        try {
+            singleFlight.submitIfAbsent(key, cacheRebuildExecutor, () -> {
+                //6.2.获取互斥锁,失败说明其它实例在重建
+                if (!tryLock(lockKey)){
+                    cacheMetrics.lockFailure(keyPrefix, CacheMetrics.LOGICAL_EXPIRE);
+                    return;
+                }
+                //6.3.成功,在独立线程里实现缓存重建
+                Timer.Sample sample = cacheMetrics.startRebuild();
                 try {
-                    //查询数据库
-                    R r1 = dbFallback.apply(id);
-                    //写入redis
-                    this.setWithLogicalExpire(key,r1,time,unit);
-
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }finally {
+                    //查询数据库,查库之前先读版本号
+                    long version = cacheVersions.current(key);
+                    R r1 = cacheMetrics.timedDb(keyPrefix, CacheMetrics.LOGICAL_EXPIRE, dbFallback).apply(id);
+                    //写入redis,期间数据被更新过则放弃,等下次读取时重新加载
+                    writer.write(r1, version);
+                } finally {
+                    cacheMetrics.stopRebuild(sample, keyPrefix, CacheMetrics.LOGICAL_EXPIRE);
                     //释放锁
                     unlock(lockKey);
                 }
-
             });
+        } catch (RejectedExecutionException e) {
+            //重建线程池已满,本次不重建,先返回旧数据
+            log.warn("缓存重建线程池已满, 跳过重建, key={}", key);
         }
 
         //6.4.返回过期的商铺信息
         return r;
     }
 
+    /**
+     * 概率提前刷新(XFetch):缓存里同时存上次重建耗时delta和过期时间,
+     * 每次读取时以 now - delta*beta*ln(rand) >= expireTime 判断是否提前重建,
+     * 越接近过期、重建越慢,提前刷新的概率越大;热点key会在过期前被某个请求刷新,
+     * 不需要互斥锁,也不会返回过期数据
+     *
+     * @param <R>        the type parameter
+     * @param <ID>       the type parameter
+     * @param keyPrefix  the key prefix
+     * @param id         the id
+     * @param type       the type
+     * @param dbFallback the db fallback
+     * @param time       the time
+     * @param unit       the unit
+     * @return the r
+     */
+    public <R,ID> R queryWithEarlyRefresh(String keyPrefix,ID id,Type type,
+                                          Function<ID,R> dbFallback,Long time,TimeUnit unit){
+        //布隆过滤器判断不存在,直接返回
+        if (!bloomFilterRegistry.mightContain(keyPrefix, id)){
+            cacheMetrics.request(keyPrefix, CacheMetrics.EARLY_REFRESH, CacheMetrics.BLOOM_REJECT);
+            return null;
+        }
+        String key = keyPrefix + id;
+        //1.从redis查询
+        byte[] raw = getRaw(key);
+        if (raw != null && raw.length == 0){
+            //命中空值
+            cacheMetrics.request(keyPrefix, CacheMetrics.EARLY_REFRESH, CacheMetrics.NULL_HIT);
+            return null;
+        }
+        if (raw != null){
+            RedisData<R> redisData = cacheCodecs.decodeLogical(keyPrefix, raw, type);
+            //2.没有抽中提前刷新,直接返回
+            if (!shouldRefreshEarly(redisData)){
+                cacheMetrics.request(keyPrefix, CacheMetrics.EARLY_REFRESH, CacheMetrics.HIT);
+                return redisData.getData();
+            }
+        }
+        cacheMetrics.request(keyPrefix, CacheMetrics.EARLY_REFRESH, raw == null ? CacheMetrics.MISS : CacheMetrics.REFRESH);
+        //3.未命中或抽中提前刷新,本JVM内合并成一次重建
+        return singleFlight.execute(key, () -> cacheMetrics.recordRebuild(keyPrefix, CacheMetrics.EARLY_REFRESH,
+                () -> rebuildWithDelta(keyPrefix,key,id,cacheMetrics.timedDb(keyPrefix, CacheMetrics.EARLY_REFRESH, dbFallback),time,unit)));
+    }
+
+    private boolean shouldRefreshEarly(RedisData<?> redisData){
+        LocalDateTime expireTime = redisData.getExpireTime();
+        if (expireTime == null){
+            return true;
+        }
+        long expireAt = toEpochMilli(expireTime);
+        long delta = redisData.getDelta() == null ? 0 : redisData.getDelta();
+        //ln(rand)<=0,所以这里是把当前时间往后推一个随机量
+        double gap = -delta * cacheProperties.getEarlyRefreshBeta()
+                * Math.log(ThreadLocalRandom.current().nextDouble(Double.MIN_VALUE, 1.0));
+        return System.currentTimeMillis() + gap >= expireAt;
+    }
+
+    private <R,ID> R rebuildWithDelta(String keyPrefix,String key,ID id,Function<ID,R> dbFallback,Long time,TimeUnit unit){
+        //查库之前先读版本号
+        long version = cacheVersions.current(key);
+        long begin = System.currentTimeMillis();
+        R r = dbFallback.apply(id);
+        long delta = System.currentTimeMillis() - begin;
+        if (r == null){
+            setIfNotStale(keyPrefix, CacheMetrics.EARLY_REFRESH, key, version, "", time, unit);
+            return null;
+        }
+        RedisData<R> redisData = new RedisData<>();
+        redisData.setData(r);
+        redisData.setDelta(delta);
+        long seconds = cacheTtlPolicy.resolveSeconds(key, time, unit);
+        redisData.setExpireTime(LocalDateTime.now().plusSeconds(seconds));
+        //真实TTL与逻辑过期时间一致,到期前已经被提前刷新
+        checkWritten(keyPrefix, CacheMetrics.EARLY_REFRESH,
+                cacheVersions.setIfNotStale(key, version, cacheCodecs.encode(keyPrefix, redisData), seconds));
+        return r;
+    }
+
     /**
      *获取锁(伪 setIfAbsent
      */
@@ -220,58 +846,108 @@ public class CacheClient {
      * @return the r
      */
     //互斥锁缓存击穿
-    public <R,ID> R queryWithMutes(String keyPrefix,String lockKeyPrefix,ID id,Class<R> type,
+    public <R,ID> R queryWithMutes(String keyPrefix,String lockKeyPrefix,ID id,Type type,
                                    Function<ID,R> dbFallback,Long time,TimeUnit unit){
         String key = keyPrefix +id;
+        //0.先查本地缓存
+        R local = getLocal(keyPrefix, key);
+        if (local != null){
+            cacheMetrics.request(keyPrefix, CacheMetrics.MUTEX, CacheMetrics.LOCAL_HIT);
+            return local;
+        }
+        //布隆过滤器判断不存在,直接返回,不查redis也不查库
+        if (!bloomFilterRegistry.mightContain(keyPrefix, id)){
+            cacheMetrics.request(keyPrefix, CacheMetrics.MUTEX, CacheMetrics.BLOOM_REJECT);
+            return null;
+        }
         //1.从redis查询商户缓存
-        String json = stringRedisTemplate.opsForValue().get(key);
+        byte[] raw = getRaw(key);
+        nearCache.recordL2(keyPrefix, raw != null);
         //2.判断是否存在
         //3.存在,直接返回
-        if (StrUtil.isNotBlank(json)){
-
-            return JSONUtil.toBean(json, type);
-        } else if (json !=null){ //判断命中的是否为空值
+        if (raw != null && raw.length > 0){
+            cacheMetrics.request(keyPrefix, CacheMetrics.MUTEX, CacheMetrics.HIT);
+            R r = cacheCodecs.decode(keyPrefix, raw, type);
+            putLocal(keyPrefix, key, r);
+            return r;
+        } else if (raw !=null){ //判断命中的是否为空值
             //没命中空值
+            cacheMetrics.request(keyPrefix, CacheMetrics.MUTEX, CacheMetrics.NULL_HIT);
             return null;
         }
 
-        //4.实现缓存重建
-        //4.1 获取互斥锁
+        //4.实现缓存重建,本JVM内同一个key只有一个线程去竞争互斥锁,其它线程等它的结果
+        cacheMetrics.request(keyPrefix, CacheMetrics.MUTEX, CacheMetrics.MISS);
         String lockKey = lockKeyPrefix+id;
-        //ctrl+alt+t
-        R r = null;
+        return singleFlight.execute(key, () -> cacheMetrics.recordRebuild(keyPrefix, CacheMetrics.MUTEX,
+                () -> rebuildWithMutex(keyPrefix,CacheMetrics.MUTEX,key,lockKey,id,
+                bytes -> cacheCodecs.decode(keyPrefix, bytes, type),
+                cacheMetrics.timedDb(keyPrefix, CacheMetrics.MUTEX, dbFallback),
+                //没查到写空值,查到了写到redis里,添加TTL到期删除
+                (r, version) -> setIfNotStale(keyPrefix, CacheMetrics.MUTEX, key, version, r == null ? "" : r, time, unit))));
+    }
+
+    /**
+     * 互斥锁重建缓存,只会由single-flight选出的线程调用
+     *
+     * @param strategy 调用方的策略,用于指标标签
+     * @param decoder 把redis中的非空值解码成结果
+     * @param writer  把查库结果和查库前读到的版本号写回redis(结果为null时负责写空值)
+     */
+    private <R,ID> R rebuildWithMutex(String keyPrefix,String strategy,String key,String lockKey,ID id,
+                                      Function<byte[],R> decoder,Function<ID,R> dbFallback,VersionedWriter<R> writer){
+        //4.1 获取互斥锁,失败说明其它实例正在重建,休眠后先看缓存是否已经写好
         try {
-            boolean lock = tryLock(lockKey);
-            //4.2 判断是否获取成功
-            if (!lock) {
-                //4.3 失败,休眠并重试
+            while (!tryLock(lockKey)) {
+                cacheMetrics.lockFailure(keyPrefix, strategy);
                 Thread.sleep(50);
-                //调用自己
-                return queryWithMutes(keyPrefix,lockKeyPrefix,id,type,dbFallback,time,unit);
-            }
-            //4.4 成功,根据id查询数据库
-
-            //模拟缓存重建延时
-            Thread.sleep(200);
-            r = dbFallback.apply(id);
-            //5.没查到,返回错误
-            if (r==null){
-                //将空值写入redis
-                this.set(key,"",time,unit);
-                //stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id,"",CACHE_NULL_TTL, TimeUnit.MINUTES);
-                //返回错误信息
-                return null;
+                byte[] raw = getRaw(key);
+                if (raw != null && raw.length > 0){
+                    R r = decoder.apply(raw);
+                    putLocal(keyPrefix, key, r);
+                    return r;
+                } else if (raw != null){
+                    return null;
+                }
             }
-            //6.查到了,写到redis里,添加TTL到期删除
-            this.set(key,r,time,unit);
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new RuntimeException(e);
-        }finally {
+        }
+        try {
+            //4.2 拿到锁后再查一次缓存,可能刚好被别的实例重建完
+            byte[] raw = getRaw(key);
+            if (raw != null && raw.length > 0){
+                R r = decoder.apply(raw);
+                putLocal(keyPrefix, key, r);
+                return r;
+            } else if (raw != null){
+                return null;
+            }
+            //4.3 根据id查询数据库,查库之前先读版本号
+            long version = cacheVersions.current(key);
+            R r = dbFallback.apply(id);
+            //5.写回redis,没查到时写空值;期间数据被更新过则不写,也不放进本地缓存
+            if (writer.write(r, version) && r != null){
+                putLocal(keyPrefix, key, r);
+            }
+            //6.返回
+            return r;
+        } finally {
             //7.释放互斥锁
             unlock(lockKey);
         }
+    }
 
-        //8.返回
-        return r;
+    /**
+     * 重建时的写回逻辑
+     */
+    private interface VersionedWriter<R> {
+        /**
+         * @param r       查库结果,null表示数据库里没有
+         * @param version 查库之前读到的版本号
+         * @return 是否写入
+         */
+        boolean write(R r, long version);
     }
 }
@@ -0,0 +1,36 @@
+package com.hmdp.utils;
+
+import java.lang.reflect.Type;
+
+/**
+ * 缓存值的编解码器(SPI),实现类注册为spring bean即可生效.
+ * 写入时使用配置的编解码器(hmdp.cache.codec),读取时根据数据本身的格式挑选能解码的实现,
+ * 所以切换编码格式不需要清空redis
+ * @author king
+ */
+public interface CacheCodec {
+
+    /**
+     * 编解码器名称,对应配置 hmdp.cache.codec
+     */
+    String name();
+
+    /**
+     * 是否能解码这段数据
+     */
+    boolean supports(byte[] bytes);
+
+    byte[] encode(Object value);
+
+    /**
+     * 解码
+     *
+     * @param type 目标类型,可以是带泛型的类型,例如 List&lt;Voucher&gt;
+     */
+    <T> T decode(byte[] bytes, Type type);
+
+    /**
+     * 解码逻辑过期数据,直接得到目标类型,不需要二次转换
+     */
+    <T> RedisData<T> decodeLogical(byte[] bytes, Type type);
+}
@@ -0,0 +1,56 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Type;
+import java.util.List;
+
+/**
+ * 汇总所有CacheCodec:写入用配置的那个,读取按数据格式挑选;
+ * 编码后的大value交给CacheCompressor压缩,读取时先解压
+ * @author king
+ */
+@Component
+public class CacheCodecs {
+
+    private final List<CacheCodec> codecs;
+    private final CacheCodec writeCodec;
+    private final CacheCompressor cacheCompressor;
+
+    public CacheCodecs(List<CacheCodec> codecs, CacheProperties cacheProperties, CacheCompressor cacheCompressor) {
+        this.codecs = codecs;
+        this.cacheCompressor = cacheCompressor;
+        String name = cacheProperties.getCodec();
+        this.writeCodec = codecs.stream()
+                .filter(codec -> codec.name().equals(name))
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("未知的缓存编解码器: " + name));
+    }
+
+    /**
+     * @param keyPrefix key前缀,用于压缩指标
+     */
+    public byte[] encode(String keyPrefix, Object value) {
+        return cacheCompressor.compress(keyPrefix, writeCodec.encode(value));
+    }
+
+    public <T> T decode(String keyPrefix, byte[] bytes, Type type) {
+        byte[] raw = cacheCompressor.decompress(keyPrefix, bytes);
+        return codecOf(raw).decode(raw, type);
+    }
+
+    public <T> RedisData<T> decodeLogical(String keyPrefix, byte[] bytes, Type type) {
+        byte[] raw = cacheCompressor.decompress(keyPrefix, bytes);
+        return codecOf(raw).decodeLogical(raw, type);
+    }
+
+    private CacheCodec codecOf(byte[] bytes) {
+        for (CacheCodec codec : codecs) {
+            if (codec.supports(bytes)) {
+                return codec;
+            }
+        }
+        throw new IllegalStateException("无法识别的缓存数据格式");
+    }
+}
@@ -0,0 +1,74 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FastDecompressor;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 缓存值的LZ4压缩.
+ * 编码后超过minSize的value压缩成 [0x01][原始长度(4字节)][LZ4数据],压缩后没有变小就原样存储;
+ * 0x01不是json和smile的合法开头,读取时按首字节判断,没压缩过的旧数据照常读取
+ * @author king
+ */
+@Component
+public class CacheCompressor {
+
+    private static final byte MAGIC = 0x01;
+    private static final int HEADER_LENGTH = 5;
+
+    private final LZ4Compressor compressor = LZ4Factory.fastestInstance().fastCompressor();
+    private final LZ4FastDecompressor decompressor = LZ4Factory.fastestInstance().fastDecompressor();
+
+    private final CacheProperties.Compression config;
+    private final CacheMetrics cacheMetrics;
+
+    public CacheCompressor(CacheProperties cacheProperties, CacheMetrics cacheMetrics) {
+        this.config = cacheProperties.getCompression();
+        this.cacheMetrics = cacheMetrics;
+    }
+
+    /**
+     * 超过阈值时压缩,否则原样返回
+     */
+    public byte[] compress(String keyPrefix, byte[] bytes) {
+        if (!config.isEnabled() || bytes.length < config.getMinSize()) {
+            return bytes;
+        }
+        long begin = System.nanoTime();
+        byte[] out = new byte[HEADER_LENGTH + compressor.maxCompressedLength(bytes.length)];
+        int length = compressor.compress(bytes, 0, bytes.length, out, HEADER_LENGTH);
+        byte[] result;
+        if (HEADER_LENGTH + length >= bytes.length) {
+            //压缩没有收益
+            result = bytes;
+        } else {
+            ByteBuffer.wrap(out).put(MAGIC).putInt(bytes.length);
+            result = new byte[HEADER_LENGTH + length];
+            System.arraycopy(out, 0, result, 0, result.length);
+        }
+        cacheMetrics.compressed(keyPrefix, bytes.length, result.length, System.nanoTime() - begin);
+        return result;
+    }
+
+    /**
+     * 压缩过的数据解压,没压缩过的原样返回
+     */
+    public byte[] decompress(String keyPrefix, byte[] bytes) {
+        if (!isCompressed(bytes)) {
+            return bytes;
+        }
+        long begin = System.nanoTime();
+        int rawLength = ByteBuffer.wrap(bytes, 1, 4).getInt();
+        byte[] raw = decompressor.decompress(bytes, HEADER_LENGTH, rawLength);
+        cacheMetrics.decompressed(keyPrefix, System.nanoTime() - begin);
+        return raw;
+    }
+
+    private static boolean isCompressed(byte[] bytes) {
+        return bytes.length > HEADER_LENGTH && bytes[0] == MAGIC;
+    }
+}
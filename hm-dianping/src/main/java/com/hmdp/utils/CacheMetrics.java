@@ -0,0 +1,164 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * CacheClient的指标,全部按key前缀和策略打标签:
+ * cache.requests(result=local_hit/hit/null_hit/stale/refresh/miss/bloom_reject),
+ * cache.lock.failures,cache.write.rejected,cache.compression.bytes(stage=raw/stored),
+ * cache.compression.latency(op=compress/decompress),以及带直方图的cache.rebuild.latency和cache.db.latency
+ * @author king
+ */
+@Component
+public class CacheMetrics {
+
+    public static final String PASS_THROUGH = "pass_through";
+    public static final String MUTEX = "mutex";
+    public static final String LOGICAL_EXPIRE = "logical_expire";
+    public static final String EARLY_REFRESH = "early_refresh";
+    public static final String BATCH = "batch";
+    public static final String REFRESH_AHEAD = "refresh_ahead";
+
+    /**
+     * 本地缓存命中
+     */
+    public static final String LOCAL_HIT = "local_hit";
+    /**
+     * redis命中
+     */
+    public static final String HIT = "hit";
+    /**
+     * 命中空值
+     */
+    public static final String NULL_HIT = "null_hit";
+    /**
+     * 逻辑过期,返回了旧数据
+     */
+    public static final String STALE = "stale";
+    /**
+     * 未命中,需要查库
+     */
+    public static final String MISS = "miss";
+    /**
+     * 被布隆过滤器拦截
+     */
+    public static final String BLOOM_REJECT = "bloom_reject";
+    /**
+     * 命中但抽中了提前刷新
+     */
+    public static final String REFRESH = "refresh";
+
+    private final MeterRegistry meterRegistry;
+
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+    public CacheMetrics(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * 记录一次查询结果
+     */
+    public void request(String keyPrefix, String strategy, String result) {
+        counters.computeIfAbsent("requests|" + keyPrefix + "|" + strategy + "|" + result,
+                k -> Counter.builder("cache.requests")
+                        .tag("prefix", keyPrefix).tag("strategy", strategy).tag("result", result)
+                        .register(meterRegistry)).increment();
+    }
+
+    /**
+     * 记录一次抢互斥锁失败
+     */
+    public void lockFailure(String keyPrefix, String strategy) {
+        counters.computeIfAbsent("lock|" + keyPrefix + "|" + strategy,
+                k -> Counter.builder("cache.lock.failures")
+                        .tag("prefix", keyPrefix).tag("strategy", strategy)
+                        .register(meterRegistry)).increment();
+    }
+
+    /**
+     * 记录一次因版本号过旧被拒绝的写入
+     */
+    public void writeRejected(String keyPrefix, String strategy) {
+        counters.computeIfAbsent("rejected|" + keyPrefix + "|" + strategy,
+                k -> Counter.builder("cache.write.rejected")
+                        .tag("prefix", keyPrefix).tag("strategy", strategy)
+                        .register(meterRegistry)).increment();
+    }
+
+    /**
+     * 记录一次压缩:压缩前后的字节数和耗时,压缩率 = stored/raw
+     */
+    public void compressed(String keyPrefix, int rawBytes, int storedBytes, long nanos) {
+        counters.computeIfAbsent("compression|" + keyPrefix + "|raw",
+                k -> Counter.builder("cache.compression.bytes").baseUnit("bytes")
+                        .tag("prefix", keyPrefix).tag("stage", "raw")
+                        .register(meterRegistry)).increment(rawBytes);
+        counters.computeIfAbsent("compression|" + keyPrefix + "|stored",
+                k -> Counter.builder("cache.compression.bytes").baseUnit("bytes")
+                        .tag("prefix", keyPrefix).tag("stage", "stored")
+                        .register(meterRegistry)).increment(storedBytes);
+        compressionTimer(keyPrefix, "compress").record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 记录一次解压耗时
+     */
+    public void decompressed(String keyPrefix, long nanos) {
+        compressionTimer(keyPrefix, "decompress").record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private Timer compressionTimer(String keyPrefix, String op) {
+        return timers.computeIfAbsent("compression|" + keyPrefix + "|" + op,
+                k -> Timer.builder("cache.compression.latency")
+                        .tag("prefix", keyPrefix).tag("op", op)
+                        .register(meterRegistry));
+    }
+
+    /**
+     * 统计一次缓存重建的耗时(从未命中到写回缓存)
+     */
+    public <T> T recordRebuild(String keyPrefix, String strategy, Supplier<T> rebuild) {
+        return timer("cache.rebuild.latency", keyPrefix, strategy).record(rebuild);
+    }
+
+    /**
+     * 开始计时,配合stopRebuild用在不方便包成lambda的地方
+     */
+    public Timer.Sample startRebuild() {
+        return Timer.start(meterRegistry);
+    }
+
+    public void stopRebuild(Timer.Sample sample, String keyPrefix, String strategy) {
+        sample.stop(timer("cache.rebuild.latency", keyPrefix, strategy));
+    }
+
+    /**
+     * 包装查库逻辑,统计查库耗时
+     */
+    public <ID, R> Function<ID, R> timedDb(String keyPrefix, String strategy, Function<ID, R> dbFallback) {
+        Timer timer = timer("cache.db.latency", keyPrefix, strategy);
+        return id -> timer.record(() -> dbFallback.apply(id));
+    }
+
+    private Timer timer(String name, String keyPrefix, String strategy) {
+        return timers.computeIfAbsent(name + "|" + keyPrefix + "|" + strategy,
+                k -> Timer.builder(name)
+                        .tag("prefix", keyPrefix).tag("strategy", strategy)
+                        .publishPercentileHistogram()
+                        .minimumExpectedValue(Duration.ofMillis(1))
+                        .maximumExpectedValue(Duration.ofSeconds(10))
+                        .register(meterRegistry));
+    }
+}
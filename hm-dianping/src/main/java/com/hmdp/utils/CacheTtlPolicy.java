@@ -0,0 +1,118 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 计算缓存的实际TTL:在基础TTL上加随机抖动,
+ * 并限制同一秒内过期的key数量(本实例视角),超出的顺延到后面的秒,
+ * 避免预热或批量导入后所有key在同一秒过期把数据库打满
+ * @author king
+ */
+@Component
+public class CacheTtlPolicy {
+
+    /**
+     * 顺延时最多往后找多少秒
+     */
+    private static final int MAX_SPREAD_SECONDS = 600;
+
+    private final List<Policy> policies;
+
+    public CacheTtlPolicy(CacheProperties cacheProperties, MeterRegistry meterRegistry) {
+        this.policies = new ArrayList<>();
+        for (CacheProperties.TtlPolicy config : cacheProperties.getTtlPolicies()) {
+            Policy policy = new Policy(config);
+            policies.add(policy);
+            Gauge.builder("cache.expiry.per.second", policy, Policy::expiringNow)
+                    .tag("prefix", config.getPrefix())
+                    .register(meterRegistry);
+        }
+    }
+
+    /**
+     * 计算实际TTL
+     *
+     * @param key  缓存key
+     * @param time 基础TTL
+     * @param unit 单位
+     * @return 实际TTL(秒)
+     */
+    public long resolveSeconds(String key, long time, TimeUnit unit) {
+        long base = Math.max(1, unit.toSeconds(time));
+        Policy policy = policyOf(key);
+        if (policy == null) {
+            return base;
+        }
+        return policy.resolve(base);
+    }
+
+    private Policy policyOf(String key) {
+        for (Policy policy : policies) {
+            if (key.startsWith(policy.config.getPrefix())) {
+                return policy;
+            }
+        }
+        return null;
+    }
+
+    private static class Policy {
+        private final CacheProperties.TtlPolicy config;
+        /**
+         * 过期时间(epoch秒) -> 安排在这一秒过期的key数量
+         */
+        private final Map<Long, AtomicInteger> buckets = new ConcurrentHashMap<>();
+        private final AtomicLong lastEvict = new AtomicLong();
+
+        Policy(CacheProperties.TtlPolicy config) {
+            this.config = config;
+        }
+
+        long resolve(long base) {
+            long ttl = base;
+            double jitter = config.getJitter();
+            if (jitter > 0) {
+                ttl = Math.max(1, Math.round(base * (1 + ThreadLocalRandom.current().nextDouble(-jitter, jitter))));
+            }
+            int max = config.getMaxExpiriesPerSecond();
+            if (max <= 0) {
+                return ttl;
+            }
+            long now = System.currentTimeMillis() / 1000;
+            evictPast(now);
+            for (int i = 0; i < MAX_SPREAD_SECONDS; i++) {
+                AtomicInteger count = buckets.computeIfAbsent(now + ttl + i, k -> new AtomicInteger());
+                if (count.incrementAndGet() <= max) {
+                    return ttl + i;
+                }
+                count.decrementAndGet();
+            }
+            //都满了就不再顺延
+            return ttl;
+        }
+
+        int expiringNow() {
+            AtomicInteger count = buckets.get(System.currentTimeMillis() / 1000);
+            return count == null ? 0 : count.get();
+        }
+
+        private void evictPast(long now) {
+            //每秒最多清理一次,只保留最近一秒供指标读取
+            long last = lastEvict.get();
+            if (last != now && lastEvict.compareAndSet(last, now)) {
+                buckets.keySet().removeIf(second -> second < now - 1);
+            }
+        }
+    }
+}
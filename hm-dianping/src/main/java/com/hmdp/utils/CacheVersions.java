@@ -0,0 +1,211 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.CACHE_VERSION_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_VERSION_TTL;
+
+/**
+ * 缓存版本号,防止慢的重建把旧数据写回缓存.
+ * 每个缓存key对应一个计数器 cache:version:{key},删除缓存时先加一再删除;
+ * 重建时在查库之前读出版本号,写回时用lua脚本比较,版本号已经增加(期间数据被更新过)就放弃写入.
+ * 计数器在最后一次删除后保留一天,远大于任何一次重建的耗时.
+ * 逻辑过期数据写入成功时,在同一个脚本里把过期时间记到提前刷新的zset(前缀注册过才记)
+ * @author king
+ */
+@Component
+public class CacheVersions {
+
+    private static final String CAS_SET_SCRIPT = "cache_cas_set";
+
+    private final RedisTemplate<String, byte[]> cacheRedisTemplate;
+    private final ReactiveRedisTemplate<String, byte[]> reactiveCacheRedisTemplate;
+    private final RefreshAheadRegistry refreshAheadRegistry;
+    private final ScriptRegistry scriptRegistry;
+
+    public CacheVersions(RedisTemplate<String, byte[]> cacheRedisTemplate,
+                         ReactiveRedisTemplate<String, byte[]> reactiveCacheRedisTemplate,
+                         RefreshAheadRegistry refreshAheadRegistry, ScriptRegistry scriptRegistry) {
+        this.cacheRedisTemplate = cacheRedisTemplate;
+        this.reactiveCacheRedisTemplate = reactiveCacheRedisTemplate;
+        this.refreshAheadRegistry = refreshAheadRegistry;
+        this.scriptRegistry = scriptRegistry;
+    }
+
+    /**
+     * 当前版本号,从未删除过的key为0.必须在查库之前调用
+     */
+    public long current(String key) {
+        return parse(cacheRedisTemplate.opsForValue().get(versionKey(key)));
+    }
+
+    /**
+     * 批量读取版本号,一次MGET,顺序与keys一致
+     */
+    public List<Long> currentAll(List<String> keys) {
+        List<String> versionKeys = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            versionKeys.add(versionKey(key));
+        }
+        List<byte[]> raws = cacheRedisTemplate.opsForValue().multiGet(versionKeys);
+        List<Long> versions = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            versions.add(raws == null ? 0L : parse(raws.get(i)));
+        }
+        return versions;
+    }
+
+    public Mono<Long> currentAsync(String key) {
+        return reactiveCacheRedisTemplate.opsForValue().get(versionKey(key))
+                .map(CacheVersions::parse)
+                .defaultIfEmpty(0L);
+    }
+
+    /**
+     * 版本号没有变旧时写入
+     *
+     * @param version 查库之前读到的版本号
+     * @param seconds 过期秒数,0表示不过期(逻辑过期)
+     * @return 是否写入,false说明期间数据被更新过,查到的已经是旧数据
+     */
+    public boolean setIfNotStale(String key, long version, byte[] value, long seconds) {
+        return written(scriptRegistry.execute(CAS_SET_SCRIPT, ReturnType.INTEGER, scriptKeys(key, null),
+                scriptArgs(key, version, value, seconds, null).toArray()));
+    }
+
+    public Mono<Boolean> setIfNotStaleAsync(String key, long version, byte[] value, long seconds) {
+        return executeAsync(key, version, value, seconds, null);
+    }
+
+    /**
+     * 写入逻辑过期数据(不设置TTL),语义同setIfNotStale
+     *
+     * @param expireAt 逻辑过期时间戳(毫秒),用于提前刷新
+     */
+    public boolean setLogicalIfNotStale(String key, long version, byte[] value, long expireAt) {
+        RefreshAheadRegistry.Spec<?, ?> spec = refreshAheadRegistry.find(key);
+        return written(scriptRegistry.execute(CAS_SET_SCRIPT, ReturnType.INTEGER, scriptKeys(key, spec),
+                scriptArgs(key, version, value, 0, spec == null ? null : expireAt).toArray()));
+    }
+
+    public Mono<Boolean> setLogicalIfNotStaleAsync(String key, long version, byte[] value, long expireAt) {
+        return executeAsync(key, version, value, 0, expireAt);
+    }
+
+    private Mono<Boolean> executeAsync(String key, long version, byte[] value, long seconds, Long expireAt) {
+        RefreshAheadRegistry.Spec<?, ?> spec = expireAt == null ? null : refreshAheadRegistry.find(key);
+        return scriptRegistry.<Long>executeAsync(CAS_SET_SCRIPT, ReturnType.INTEGER, scriptKeys(key, spec),
+                        scriptArgs(key, version, value, seconds, spec == null ? null : expireAt).toArray())
+                .map(CacheVersions::written)
+                .defaultIfEmpty(false);
+    }
+
+    /**
+     * 批量写入,一个pipeline完成,各参数按下标一一对应
+     *
+     * @return 每个key是否写入
+     */
+    public boolean[] setAllIfNotStale(List<String> keys, List<Long> versions, List<byte[]> values, List<Long> seconds) {
+        return setAll(keys, versions, values, seconds, null);
+    }
+
+    /**
+     * 批量写入逻辑过期数据,一个pipeline完成
+     *
+     * @param expireAts 逻辑过期时间戳(毫秒)
+     * @return 每个key是否写入
+     */
+    public boolean[] setAllLogicalIfNotStale(List<String> keys, List<Long> versions, List<byte[]> values,
+                                             List<Long> expireAts) {
+        return setAll(keys, versions, values, null, expireAts);
+    }
+
+    private boolean[] setAll(List<String> keys, List<Long> versions, List<byte[]> values,
+                             List<Long> seconds, List<Long> expireAts) {
+        List<Object> results = scriptRegistry.pipelined(CAS_SET_SCRIPT, () ->
+                cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    for (int i = 0; i < keys.size(); i++) {
+                        String key = keys.get(i);
+                        RefreshAheadRegistry.Spec<?, ?> spec = expireAts == null ? null : refreshAheadRegistry.find(key);
+                        scriptRegistry.evalSha(connection, CAS_SET_SCRIPT, ReturnType.INTEGER, scriptKeys(key, spec),
+                                scriptArgs(key, versions.get(i), values.get(i), seconds == null ? 0 : seconds.get(i),
+                                        spec == null ? null : expireAts.get(i)).toArray());
+                    }
+                    return null;
+                }));
+        boolean[] written = new boolean[keys.size()];
+        for (int i = 0; i < written.length; i++) {
+            written[i] = written(results.get(i));
+        }
+        return written;
+    }
+
+    /**
+     * 版本号加一并删除缓存,一个pipeline完成.
+     * 先加版本号再删除,删除之后开始的重建一定读到新的版本号
+     */
+    public void bumpAndDelete(Collection<String> keys) {
+        long ttl = TimeUnit.HOURS.toSeconds(CACHE_VERSION_TTL);
+        cacheRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                byte[] versionKey = bytes(versionKey(key));
+                connection.stringCommands().incr(versionKey);
+                connection.keyCommands().expire(versionKey, ttl);
+                connection.keyCommands().del(bytes(key));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 脚本的KEYS:缓存key、版本号key,需要跟踪过期时间时再加上提前刷新的zset
+     */
+    private List<String> scriptKeys(String key, RefreshAheadRegistry.Spec<?, ?> spec) {
+        return spec == null
+                ? Arrays.asList(key, versionKey(key))
+                : Arrays.asList(key, versionKey(key), spec.getRefreshKey());
+    }
+
+    /**
+     * 脚本的ARGV:版本号、值、过期秒数,需要跟踪过期时间时再加上过期时间和id
+     */
+    private List<byte[]> scriptArgs(String key, long version, byte[] value, long seconds, Long expireAt) {
+        List<byte[]> args = new ArrayList<>(5);
+        args.add(bytes(version));
+        args.add(value);
+        args.add(bytes(seconds));
+        if (expireAt != null) {
+            args.add(bytes(expireAt));
+            args.add(bytes(refreshAheadRegistry.find(key).member(key)));
+        }
+        return args;
+    }
+
+    private static boolean written(Object result) {
+        return Long.valueOf(1L).equals(result);
+    }
+
+    private static String versionKey(String key) {
+        return CACHE_VERSION_KEY + key;
+    }
+
+    private static long parse(byte[] raw) {
+        return raw == null ? 0L : Long.parseLong(new String(raw, StandardCharsets.UTF_8));
+    }
+
+    private static byte[] bytes(Object value) {
+        return String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+    }
+}
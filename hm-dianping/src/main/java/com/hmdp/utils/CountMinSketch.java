@@ -0,0 +1,53 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 线程安全的count-min sketch,用固定内存估算每个key的出现次数,只会高估不会低估.
+ * depth行每行width个计数器,估计值取各行的最小值
+ * @author king
+ */
+public class CountMinSketch {
+
+    private final int depth;
+    private final int width;
+    private final AtomicLongArray counters;
+
+    public CountMinSketch(int depth, int width) {
+        this.depth = depth;
+        this.width = width;
+        this.counters = new AtomicLongArray(depth * width);
+    }
+
+    /**
+     * 计数加一,返回加完之后的估计值
+     */
+    public long add(String key) {
+        long[] hash = MurmurHash.hash128(key);
+        long combined = hash[0];
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            int idx = i * width + (int) ((combined & Long.MAX_VALUE) % width);
+            min = Math.min(min, counters.incrementAndGet(idx));
+            combined += hash[1];
+        }
+        return min;
+    }
+
+    /**
+     * 估计值
+     */
+    public long estimate(String key) {
+        long[] hash = MurmurHash.hash128(key);
+        long combined = hash[0];
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            int idx = i * width + (int) ((combined & Long.MAX_VALUE) % width);
+            min = Math.min(min, counters.get(idx));
+            combined += hash[1];
+        }
+        return min;
+    }
+}
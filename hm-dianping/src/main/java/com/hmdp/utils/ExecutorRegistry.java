@@ -0,0 +1,129 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.ExecutorProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 后台线程池统一管理,每种任务一个有界、有名字的池,互相隔离:
+ * 一个慢的mysql只会占满对应的池并拒绝新任务,不会把任务无限堆积在内存里,也不会拖住其它任务.
+ * 每个池发布 executor.queued / executor.active / executor.pool.size 等指标,
+ * 任务的执行耗时 executor 和排队耗时 executor.idle,以及拒绝次数 executor.rejected,都带name标签
+ * @author king
+ */
+@Slf4j
+@Component
+public class ExecutorRegistry {
+
+    /**
+     * 逻辑过期的后台重建
+     */
+    public static final String CACHE_REBUILD = "cache-rebuild";
+    /**
+     * 定时提前刷新
+     */
+    public static final String CACHE_REFRESH = "cache-refresh";
+    /**
+     * 缓存预热
+     */
+    public static final String CACHE_WARMUP = "cache-warmup";
+    /**
+     * 异步缓存客户端的查库
+     */
+    public static final String CACHE_ASYNC_DB = "cache-async-db";
+    /**
+     * 缓存失效发件箱的relay
+     */
+    public static final String CACHE_OUTBOX = "cache-outbox";
+    /**
+     * 秒杀订单消费,从stream读取消息,线程数即消费者个数
+     */
+    public static final String ORDER_CONSUMER = "order-consumer";
+    /**
+     * 秒杀订单处理通道,每个线程按用户分区顺序下单,线程数即通道个数
+     */
+    public static final String ORDER_LANE = "order-lane";
+
+    private final ExecutorProperties executorProperties;
+    private final MeterRegistry meterRegistry;
+
+    private final Map<String, ThreadPoolExecutor> pools = new ConcurrentHashMap<>();
+    private final Map<String, ExecutorService> executors = new ConcurrentHashMap<>();
+
+    public ExecutorRegistry(ExecutorProperties executorProperties, MeterRegistry meterRegistry) {
+        this.executorProperties = executorProperties;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * 获取线程池,第一次获取时按配置创建
+     */
+    public ExecutorService executor(String name) {
+        return executors.computeIfAbsent(name, this::create);
+    }
+
+    /**
+     * 配置的线程数
+     */
+    public int threads(String name) {
+        return pool(name).getThreads();
+    }
+
+    /**
+     * 线程数加排队上限,同时在途的任务超过这个数就会被拒绝
+     */
+    public int capacity(String name) {
+        ExecutorProperties.Pool pool = pool(name);
+        return pool.getThreads() + pool.getQueueCapacity();
+    }
+
+    private ExecutorService create(String name) {
+        ExecutorProperties.Pool pool = pool(name);
+        BlockingQueue<Runnable> queue = pool.getQueueCapacity() > 0
+                ? new ArrayBlockingQueue<>(pool.getQueueCapacity())
+                : new SynchronousQueue<>();
+        Counter rejected = Counter.builder("executor.rejected").tag("name", name).register(meterRegistry);
+        AtomicInteger seq = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(pool.getThreads(), pool.getThreads(),
+                pool.getKeepAlive().toMillis(), TimeUnit.MILLISECONDS, queue,
+                r -> {
+                    Thread t = new Thread(r, name + "-" + seq.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                (r, e) -> {
+                    //记一次拒绝再抛出,由调用方决定降级方式
+                    rejected.increment();
+                    throw new RejectedExecutionException("线程池[" + name + "]已满, 拒绝任务");
+                });
+        executor.allowCoreThreadTimeOut(true);
+        pools.put(name, executor);
+        log.info("创建线程池[{}]: {}个线程, 排队上限{}", name, pool.getThreads(), pool.getQueueCapacity());
+        return ExecutorServiceMetrics.monitor(meterRegistry, executor, name, Tags.empty());
+    }
+
+    private ExecutorProperties.Pool pool(String name) {
+        return executorProperties.getExecutors().getOrDefault(name, new ExecutorProperties.Pool());
+    }
+
+    @PreDestroy
+    public void destroy() {
+        pools.forEach((name, executor) -> executor.shutdownNow());
+    }
+}
@@ -0,0 +1,29 @@
+package com.hmdp.utils;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 方法成功返回后删除缓存.
+ * 在事务中时写入缓存失效发件箱,事务提交后再删除(含延迟双删);不在事务中时直接删除
+ * @author king
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface HmdpCacheEvict {
+
+    /**
+     * key前缀,完整的key为 prefix + key
+     */
+    String prefix();
+
+    /**
+     * SpEL表达式,可以用参数名(#id)或位置(#p0),为空时取第一个参数;
+     * 只能通过参数名或位置引用参数,不支持#root等其它变量
+     */
+    String key() default "";
+}
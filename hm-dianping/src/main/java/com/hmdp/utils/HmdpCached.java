@@ -0,0 +1,52 @@
+package com.hmdp.utils;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 方法返回值走CacheClient缓存,返回null表示数据不存在(会按策略缓存空值).
+ * 例:
+ * <pre>
+ * &#64;HmdpCached(prefix = CACHE_USER_KEY, ttl = 30)
+ * public UserDTO queryUserDTOById(Long id)
+ * </pre>
+ * 注意:同一个类内部调用不经过代理,不会走缓存.
+ * LOGICAL_EXPIRE过期后在后台线程重建,直接调用目标对象的方法,
+ * 拿不到调用方的UserHolder、事务等线程上下文,也不经过其它切面,
+ * 所以只能用在结果只取决于参数的方法上
+ * @author king
+ */
+@Documented
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface HmdpCached {
+
+    /**
+     * key前缀,完整的key为 prefix + key
+     */
+    String prefix();
+
+    /**
+     * SpEL表达式,可以用参数名(#id)或位置(#p0),为空时取第一个参数;
+     * 只能通过参数名或位置引用参数,不支持#root等其它变量
+     */
+    String key() default "";
+
+    /**
+     * 过期时间,LOGICAL_EXPIRE时为逻辑过期时间
+     */
+    long ttl();
+
+    TimeUnit unit() default TimeUnit.MINUTES;
+
+    CacheStrategy strategy() default CacheStrategy.PASS_THROUGH;
+
+    /**
+     * 互斥锁key前缀,MUTEX和LOGICAL_EXPIRE使用,为空时用 "lock:" + prefix
+     */
+    String lockPrefix() default "";
+}
@@ -0,0 +1,135 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import com.hmdp.dto.HotKeyDTO;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+
+/**
+ * 热点key探测.
+ * 按采样率抽样访问,用count-min sketch按时间窗口统计次数,估计值超过阈值的key标记为热点,
+ * 由CacheClient把它钉到本地(NearCache的pinned区,短TTL,删除缓存时随pub/sub一起失效);
+ * 每个窗口结束时重新计算top-K,已经降温的key自动取消钉住
+ * @author king
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+
+    /**
+     * 估计值达到阈值的这个比例才进入候选集,候选集用来计算top-K
+     */
+    private static final double CANDIDATE_RATIO = 0.1;
+
+    private final CacheProperties.HotKey config;
+    private final NearCache nearCache;
+    private final Counter detected;
+
+    private volatile Window current;
+
+    private final Set<String> hotKeys = ConcurrentHashMap.newKeySet();
+
+    private volatile List<HotKeyDTO> lastTopK = Collections.emptyList();
+
+    public HotKeyDetector(CacheProperties cacheProperties, NearCache nearCache, MeterRegistry meterRegistry) {
+        this.config = cacheProperties.getHotKey();
+        this.nearCache = nearCache;
+        this.current = new Window();
+        this.detected = Counter.builder("cache.hotkey.detected").register(meterRegistry);
+        Gauge.builder("cache.hotkey.pinned", hotKeys, Set::size).register(meterRegistry);
+    }
+
+    /**
+     * 记录一次访问,按采样率抽样
+     */
+    public void record(String key) {
+        if (!config.isEnabled() || ThreadLocalRandom.current().nextDouble() >= config.getSampleRate()) {
+            return;
+        }
+        Window window = current;
+        long count = (long) (window.sketch.add(key) / config.getSampleRate());
+        if (count < config.getThreshold() * CANDIDATE_RATIO) {
+            return;
+        }
+        window.offer(key, count);
+        if (count >= config.getThreshold() && hotKeys.add(key)) {
+            detected.increment();
+            log.info("发现热点key:{}, 窗口内估计访问{}次", key, count);
+        }
+    }
+
+    public boolean isHot(String key) {
+        return !hotKeys.isEmpty() && hotKeys.contains(key);
+    }
+
+    /**
+     * 上一个完整窗口的top-K,按访问次数倒序
+     */
+    public List<HotKeyDTO> topK() {
+        return lastTopK.stream()
+                .map(h -> new HotKeyDTO(h.getKey(), h.getCount(), hotKeys.contains(h.getKey())))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 切换统计窗口,窗口内没达到阈值的热点key取消钉住
+     */
+    @Scheduled(fixedDelayString = "#{@cacheProperties.hotKey.window.toMillis()}")
+    public void rotate() {
+        if (!config.isEnabled()) {
+            return;
+        }
+        Window finished = current;
+        current = new Window();
+
+        List<HotKeyDTO> top = finished.candidates.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(config.getTopK())
+                .map(e -> new HotKeyDTO(e.getKey(), e.getValue(), true))
+                .collect(Collectors.toList());
+        lastTopK = top;
+
+        List<String> cooled = new ArrayList<>();
+        for (String key : hotKeys) {
+            Long count = finished.candidates.get(key);
+            if (count == null || count < config.getThreshold()) {
+                cooled.add(key);
+            }
+        }
+        for (String key : cooled) {
+            hotKeys.remove(key);
+            nearCache.unpin(key);
+            log.info("热点key降温,取消本地副本:{}", key);
+        }
+    }
+
+    /**
+     * 一个统计窗口
+     */
+    private class Window {
+        private final CountMinSketch sketch = new CountMinSketch(config.getSketchDepth(), config.getSketchWidth());
+        private final Map<String, Long> candidates = new ConcurrentHashMap<>();
+
+        void offer(String key, long count) {
+            //候选集满了只接收热点key,防止大量温key把内存撑大
+            if (candidates.size() >= config.getTopK() * 8 && !candidates.containsKey(key)
+                    && count < config.getThreshold()) {
+                return;
+            }
+            candidates.merge(key, count, Math::max);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSON;
+import cn.hutool.json.JSONUtil;
+import org.springframework.stereotype.Component;
+
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * hutool JSON字符串格式,也是切换前写入的旧格式
+ * @author king
+ */
+@Component
+public class JsonCacheCodec implements CacheCodec {
+
+    public static final String NAME = "json";
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public boolean supports(byte[] bytes) {
+        //JSON对象/数组/字符串
+        byte first = bytes[0];
+        return first == '{' || first == '[' || first == '"';
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Type type) {
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type, false);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> RedisData<T> decodeLogical(byte[] bytes, Type type) {
+        RedisData<Object> raw = JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), RedisData.class);
+        RedisData<T> redisData = new RedisData<>();
+        redisData.setExpireTime(raw.getExpireTime());
+        Object data = raw.getData();
+        redisData.setData(data instanceof JSON ? ((JSON) data).toBean(type) : (T) data);
+        return redisData;
+    }
+}
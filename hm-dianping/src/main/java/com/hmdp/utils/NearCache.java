@@ -0,0 +1,256 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import cn.hutool.core.util.StrUtil;
+import com.hmdp.config.CacheProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.hmdp.utils.RedisConstants.CACHE_INVALIDATE_CHANNEL;
+
+/**
+ * 本地一级缓存(L1),挡在redis(L2)前面.
+ * 按key前缀分区,每个分区有自己的容量和TTL;
+ * 某个实例删除缓存时通过redis的pub/sub广播,所有实例收到后清掉本地副本.
+ * 另外有一个不分前缀的pinned区,存放HotKeyDetector发现的热点key,TTL很短.
+ * 注意:命中时返回的是同一个对象实例,调用方不要修改它
+ * @author king
+ */
+@Slf4j
+@Component
+public class NearCache implements MessageListener {
+
+    private static final String TIER_L1 = "l1";
+    private static final String TIER_L2 = "l2";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final MeterRegistry meterRegistry;
+    private final boolean enabled;
+
+    /**
+     * 热点key的本地副本,没开启热点探测时为null
+     */
+    private final LRUCache<String, Object> pinned;
+    private final long pinTtlMillis;
+
+    /**
+     * key前缀 -> 分区
+     */
+    private final Map<String, Region> regions = new ConcurrentHashMap<>();
+
+    public NearCache(StringRedisTemplate stringRedisTemplate, MeterRegistry meterRegistry,
+                     CacheProperties cacheProperties) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.meterRegistry = meterRegistry;
+        CacheProperties.Near near = cacheProperties.getNear();
+        this.enabled = near.isEnabled();
+        if (enabled) {
+            for (CacheProperties.NearSpec spec : near.getSpecs()) {
+                regions.put(spec.getPrefix(), new Region(spec));
+            }
+        }
+        CacheProperties.HotKey hotKey = cacheProperties.getHotKey();
+        this.pinTtlMillis = hotKey.getPinTtl().toMillis();
+        this.pinned = hotKey.isEnabled() ? CacheUtil.newLRUCache(hotKey.getMaxPinned(), pinTtlMillis) : null;
+        if (pinned != null) {
+            Gauge.builder("cache.near.size", pinned, LRUCache::size)
+                    .tag("prefix", "pinned")
+                    .register(meterRegistry);
+        }
+    }
+
+    /**
+     * 查询热点key的本地副本
+     */
+    @SuppressWarnings("unchecked")
+    public <R> R getPinned(String key) {
+        if (pinned == null) {
+            return null;
+        }
+        return (R) pinned.get(key, false);
+    }
+
+    /**
+     * 把热点key钉到本地
+     */
+    public void pin(String key, Object value) {
+        if (pinned == null || value == null) {
+            return;
+        }
+        pinned.put(key, value, pinTtlMillis);
+    }
+
+    /**
+     * 热点key降温,取消本地副本
+     */
+    public void unpin(String key) {
+        if (pinned != null) {
+            pinned.remove(key);
+        }
+    }
+
+    /**
+     * 查询本地缓存,没开启或没命中返回null
+     */
+    @SuppressWarnings("unchecked")
+    public <R> R get(String keyPrefix, String key) {
+        Region region = regions.get(keyPrefix);
+        if (region == null) {
+            return null;
+        }
+        //不刷新访问时间,保证TTL从写入开始算
+        Object value = region.cache.get(key, false);
+        region.record(TIER_L1, value != null);
+        return (R) value;
+    }
+
+    /**
+     * 写入本地缓存
+     */
+    public void put(String keyPrefix, String key, Object value) {
+        Region region = regions.get(keyPrefix);
+        if (region == null || value == null) {
+            return;
+        }
+        region.cache.put(key, value);
+    }
+
+    /**
+     * 记录redis层的命中情况,用于计算每一层的命中率
+     */
+    public void recordL2(String keyPrefix, boolean hit) {
+        Region region = regions.get(keyPrefix);
+        if (region != null) {
+            region.record(TIER_L2, hit);
+        }
+    }
+
+    /**
+     * 只清本实例的本地副本
+     */
+    public void invalidateLocal(String key) {
+        unpin(key);
+        Region region = regionOf(key);
+        if (region != null) {
+            region.cache.remove(key);
+        }
+    }
+
+    /**
+     * 清本地副本并通知其它实例,消息格式 发送时间戳|key
+     */
+    public void invalidate(String key) {
+        if (!enabled && pinned == null) {
+            return;
+        }
+        invalidateLocal(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, System.currentTimeMillis() + "|" + key);
+    }
+
+    /**
+     * 批量清本地副本,失效消息用一个pipeline发出
+     */
+    public void invalidateAll(Collection<String> keys) {
+        if (!enabled && pinned == null) {
+            return;
+        }
+        keys.forEach(this::invalidateLocal);
+        byte[] channel = CACHE_INVALIDATE_CHANNEL.getBytes(StandardCharsets.UTF_8);
+        String sentAt = System.currentTimeMillis() + "|";
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                connection.publish(channel, (sentAt + key).getBytes(StandardCharsets.UTF_8));
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int idx = body.indexOf('|');
+        if (idx < 0) {
+            log.warn("无法识别的缓存失效消息:{}", body);
+            return;
+        }
+        long sentAt = Long.parseLong(body.substring(0, idx));
+        String key = body.substring(idx + 1);
+        unpin(key);
+        Region region = regionOf(key);
+        if (region == null) {
+            return;
+        }
+        region.cache.remove(key);
+        region.invalidationLag.record(Math.max(0, System.currentTimeMillis() - sentAt), TimeUnit.MILLISECONDS);
+    }
+
+    private Region regionOf(String key) {
+        if (StrUtil.isEmpty(key)) {
+            return null;
+        }
+        for (Map.Entry<String, Region> entry : regions.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 一个key前缀对应的本地分区和它的指标
+     */
+    private class Region {
+        private final LRUCache<String, Object> cache;
+        private final Map<String, LongAdder> hits = new ConcurrentHashMap<>();
+        private final Map<String, LongAdder> total = new ConcurrentHashMap<>();
+        private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+        private final Timer invalidationLag;
+        private final String prefix;
+
+        Region(CacheProperties.NearSpec spec) {
+            this.prefix = spec.getPrefix();
+            this.cache = CacheUtil.newLRUCache(spec.getMaxSize(), spec.getTtl().toMillis());
+            for (String tier : new String[]{TIER_L1, TIER_L2}) {
+                LongAdder h = new LongAdder();
+                LongAdder t = new LongAdder();
+                hits.put(tier, h);
+                total.put(tier, t);
+                Gauge.builder("cache.near.hit.ratio", () -> t.sum() == 0 ? 0 : (double) h.sum() / t.sum())
+                        .tag("prefix", prefix).tag("tier", tier)
+                        .register(meterRegistry);
+            }
+            Gauge.builder("cache.near.size", cache, LRUCache::size)
+                    .tag("prefix", prefix)
+                    .register(meterRegistry);
+            this.invalidationLag = Timer.builder("cache.near.invalidation.lag")
+                    .tag("prefix", prefix).tag("tier", TIER_L1)
+                    .register(meterRegistry);
+        }
+
+        void record(String tier, boolean hit) {
+            total.get(tier).increment();
+            if (hit) {
+                hits.get(tier).increment();
+            }
+            counters.computeIfAbsent(tier + (hit ? ":hit" : ":miss"), k -> Counter.builder("cache.near.requests")
+                    .tag("prefix", prefix).tag("tier", tier).tag("result", hit ? "hit" : "miss")
+                    .register(meterRegistry)).increment();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import org.springframework.data.redis.connection.BitFieldSubCommands;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * 基于redis bitmap的布隆过滤器,所有实例共用同一个bitmap.
+ * 位数m和哈希次数k根据预计元素个数n和期望误判率p计算:
+ * m = -n*ln(p)/(ln2)^2, k = m/n*ln2
+ * @author king
+ */
+public class RedisBloomFilter {
+
+    /**
+     * redis单个字符串最大512MB,即2^32位
+     */
+    private static final long MAX_BITS = 1L << 32;
+
+    private final String key;
+    private final long numBits;
+    private final int numHashes;
+    private final StringRedisTemplate stringRedisTemplate;
+
+    public RedisBloomFilter(String key, long expectedInsertions, double fpp, StringRedisTemplate stringRedisTemplate) {
+        this.key = key;
+        this.numBits = optimalNumBits(expectedInsertions, fpp);
+        this.numHashes = optimalNumHashes(expectedInsertions, numBits);
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 可能存在返回true,一定不存在返回false
+     */
+    public boolean mightContain(Object value) {
+        long[] offsets = offsets(value);
+        byte[] rawKey = rawKey();
+        List<Object> bits = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (long offset : offsets) {
+                connection.getBit(rawKey, offset);
+            }
+            return null;
+        });
+        for (Object bit : bits) {
+            if (!Boolean.TRUE.equals(bit)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 批量判断,一个pipeline查完所有位
+     */
+    public boolean[] mightContainAll(List<?> values) {
+        byte[] rawKey = rawKey();
+        List<Object> bits = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Object value : values) {
+                for (long offset : offsets(value)) {
+                    connection.getBit(rawKey, offset);
+                }
+            }
+            return null;
+        });
+        boolean[] result = new boolean[values.size()];
+        for (int i = 0; i < result.length; i++) {
+            boolean contains = true;
+            for (int j = 0; j < numHashes && contains; j++) {
+                contains = Boolean.TRUE.equals(bits.get(i * numHashes + j));
+            }
+            result[i] = contains;
+        }
+        return result;
+    }
+
+    /**
+     * 一条BITFIELD命令写入k个位,写入失败抛出异常
+     */
+    public void put(Object value) {
+        List<Long> result = stringRedisTemplate.opsForValue().bitField(key, setBits(value));
+        if (result == null || result.size() != numHashes) {
+            throw new IllegalStateException("布隆过滤器[" + key + "]写入失败: " + value);
+        }
+    }
+
+    /**
+     * 一个pipeline写入一批元素,每个元素一条BITFIELD,有写入失败的抛出异常
+     */
+    public void putAll(Collection<?> values) {
+        if (values.isEmpty()) {
+            return;
+        }
+        byte[] rawKey = rawKey();
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Object value : values) {
+                connection.bitField(rawKey, setBits(value));
+            }
+            return null;
+        });
+        boolean ok = results.size() == values.size();
+        for (int i = 0; ok && i < results.size(); i++) {
+            Object result = results.get(i);
+            ok = result instanceof List && ((List<?>) result).size() == numHashes;
+        }
+        if (!ok) {
+            throw new IllegalStateException("布隆过滤器[" + key + "]批量写入失败, " + values.size() + "个元素");
+        }
+    }
+
+    /**
+     * BITFIELD key SET u1 offset1 1 SET u1 offset2 1 ...
+     */
+    private BitFieldSubCommands setBits(Object value) {
+        BitFieldSubCommands commands = BitFieldSubCommands.create();
+        for (long offset : offsets(value)) {
+            commands = commands.set(BitFieldSubCommands.BitFieldType.unsigned(1))
+                    .valueAt(BitFieldSubCommands.Offset.offset(offset)).to(1);
+        }
+        return commands;
+    }
+
+    /**
+     * 根据当前置位比例估算的实际误判率 (置位数/m)^k
+     */
+    public double estimatedFpp() {
+        Long bitCount = stringRedisTemplate.execute((RedisCallback<Long>) connection -> bitCount(connection));
+        if (bitCount == null) {
+            return 0;
+        }
+        return Math.pow((double) bitCount / numBits, numHashes);
+    }
+
+    /**
+     * bitmap占用的内存(字节)
+     */
+    public long memoryBytes() {
+        return (numBits + 7) / 8;
+    }
+
+    public long getNumBits() {
+        return numBits;
+    }
+
+    public int getNumHashes() {
+        return numHashes;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    private Long bitCount(RedisConnection connection) {
+        return connection.bitCount(rawKey());
+    }
+
+    private byte[] rawKey() {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 双重哈希 h1 + i*h2 生成k个位置
+     */
+    private long[] offsets(Object value) {
+        long[] hash = MurmurHash.hash128(String.valueOf(value));
+        long[] offsets = new long[numHashes];
+        long combined = hash[0];
+        for (int i = 0; i < numHashes; i++) {
+            offsets[i] = (combined & Long.MAX_VALUE) % numBits;
+            combined += hash[1];
+        }
+        return offsets;
+    }
+
+    private static long optimalNumBits(long n, double p) {
+        long bits = (long) Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+        return Math.max(64, Math.min(bits, MAX_BITS));
+    }
+
+    private static int optimalNumHashes(long n, long m) {
+        return Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+    }
+}
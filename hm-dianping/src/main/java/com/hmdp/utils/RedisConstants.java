@@ -11,11 +11,48 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String BLOOM_KEY_PREFIX = "bloom:";
+    //缓存版本号,删除缓存时加一,重建时带上查库前的版本号写入
+    public static final String CACHE_VERSION_KEY = "cache:version:";
+    public static final Long CACHE_VERSION_TTL = 24L;
+    //逻辑过期数据按过期时间排序的zset,定时提前刷新用
+    public static final String CACHE_REFRESH_KEY = "cache:refresh:";
+
+    public static final String CACHE_SHOP_TYPE_KEY = "cache:typeList";
+    public static final Long CACHE_SHOP_TYPE_TTL = 60L;
+
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final long CACHE_USER_TTL = 30L;
+
+    public static final String CACHE_USER_INFO_KEY = "cache:userInfo:";
+    public static final long CACHE_USER_INFO_TTL = 30L;
+
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final long CACHE_BLOG_TTL = 30L;
+
+    //包含秒杀券库存,过期时间短一些
+    public static final String CACHE_SHOP_VOUCHER_KEY = "cache:shopVoucher:";
+    public static final long CACHE_SHOP_VOUCHER_TTL = 1L;
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    //秒杀券的库存分桶数,没有表示不分桶
+    public static final String SECKILL_BUCKETS_KEY = "seckill:buckets:";
+    //秒杀券的开始、结束时间和状态,hash
+    public static final String SECKILL_VOUCHER_KEY = "seckill:voucher:";
+    //秒杀券售罄、补库存的通知频道
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    //秒杀订单消息队列,不分桶的券使用;分桶的券每个分桶一个 stream.orders:{voucherId:i}
+    public static final String SECKILL_ORDER_STREAM = "stream.orders";
+    //所有分桶订单消息队列的key,set,消费者据此读取
+    public static final String SECKILL_ORDER_STREAMS_KEY = "seckill:streams";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    //超过最多投递次数的订单消息
+    public static final String SECKILL_ORDER_DLQ = "stream.orders.dlq";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
@@ -4,8 +4,16 @@ import lombok.Data;
 
 import java.time.LocalDateTime;
 
+/**
+ * 带逻辑过期时间的缓存数据
+ * @param <T> 数据类型
+ */
 @Data
-public class  RedisData {
+public class RedisData<T> {
     private LocalDateTime expireTime;
-    private Object data;
+    private T data;
+    /**
+     * 上次重建耗时(毫秒),提前刷新策略用
+     */
+    private Long delta;
 }
@@ -0,0 +1,141 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static com.hmdp.utils.RedisConstants.CACHE_REFRESH_KEY;
+
+/**
+ * 参与定时提前刷新的key前缀.
+ * 注册过的前缀写入逻辑过期数据时,会把id和逻辑过期时间记到 cache:refresh:{prefix} 这个zset里,
+ * 由RefreshAheadScheduler按过期时间批量刷新;没注册的前缀不记录,zset不会无限增长
+ * @author king
+ */
+@Slf4j
+@Component
+public class RefreshAheadRegistry {
+
+    private final Map<String, Spec<?, ?>> specs = new ConcurrentHashMap<>();
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final CacheProperties.RefreshAhead config;
+
+    public RefreshAheadRegistry(StringRedisTemplate stringRedisTemplate, CacheProperties cacheProperties) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.config = cacheProperties.getRefreshAhead();
+    }
+
+    /**
+     * 注册一个前缀,没开启提前刷新时什么都不做
+     *
+     * @param idParser   把zset里的id字符串转回id
+     * @param dbFallback 根据一批id查库,返回 id -> 实体
+     * @param time       逻辑过期时间
+     * @param unit       the unit
+     */
+    public <ID, R> void register(String keyPrefix, Function<String, ID> idParser,
+                                 Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit unit) {
+        if (!config.isEnabled()) {
+            return;
+        }
+        specs.put(keyPrefix, new Spec<>(keyPrefix, idParser, dbFallback, time, unit));
+        log.info("缓存[{}]开启提前刷新, 提前{}秒", keyPrefix, config.getLead().getSeconds());
+    }
+
+    public Collection<Spec<?, ?>> specs() {
+        return specs.values();
+    }
+
+    /**
+     * key所属的已注册前缀,没有注册返回null
+     */
+    public Spec<?, ?> find(String key) {
+        for (Spec<?, ?> spec : specs.values()) {
+            if (key.startsWith(spec.getKeyPrefix())) {
+                return spec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 记录逻辑过期时间,没注册的前缀忽略
+     */
+    public void track(String key, long expireAt) {
+        Spec<?, ?> spec = find(key);
+        if (spec != null) {
+            stringRedisTemplate.opsForZSet().add(spec.getRefreshKey(), spec.member(key), expireAt);
+        }
+    }
+
+    /**
+     * 批量记录逻辑过期时间,一个pipeline完成
+     *
+     * @param expireAts key -> 逻辑过期时间戳(毫秒)
+     */
+    public void trackAll(Map<String, Long> expireAts) {
+        if (specs.isEmpty() || expireAts.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            expireAts.forEach((key, expireAt) -> {
+                Spec<?, ?> spec = find(key);
+                if (spec != null) {
+                    connection.zSetCommands().zAdd(bytes(spec.getRefreshKey()), expireAt, bytes(spec.member(key)));
+                }
+            });
+            return null;
+        });
+    }
+
+    /**
+     * 不再跟踪,数据库里已经没有的数据用
+     */
+    public void untrack(Spec<?, ?> spec, Collection<String> members) {
+        if (!members.isEmpty()) {
+            stringRedisTemplate.opsForZSet().remove(spec.getRefreshKey(), members.toArray());
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Getter
+    public static class Spec<ID, R> {
+        private final String keyPrefix;
+        private final String refreshKey;
+        private final Function<String, ID> idParser;
+        private final Function<Collection<ID>, Map<ID, R>> dbFallback;
+        private final Long time;
+        private final TimeUnit unit;
+
+        Spec(String keyPrefix, Function<String, ID> idParser, Function<Collection<ID>, Map<ID, R>> dbFallback,
+             Long time, TimeUnit unit) {
+            this.keyPrefix = keyPrefix;
+            this.refreshKey = CACHE_REFRESH_KEY + keyPrefix;
+            this.idParser = idParser;
+            this.dbFallback = dbFallback;
+            this.time = time;
+            this.unit = unit;
+        }
+
+        /**
+         * zset里存的是去掉前缀的id
+         */
+        public String member(String key) {
+            return key.substring(keyPrefix.length());
+        }
+    }
+}
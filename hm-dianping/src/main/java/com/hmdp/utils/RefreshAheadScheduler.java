@@ -0,0 +1,134 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 逻辑过期数据的定时提前刷新.
+ * 按注册的前缀扫描 cache:refresh:{prefix},把快要过期的key分批领取、查库、写回,
+ * 冷门key不会一直返回很旧的数据,热点key也不会在过期时去抢互斥锁.
+ * 每个实例每秒最多刷新maxPerSecond个key,多个实例通过lua脚本领取,不会重复刷新.
+ * 刷新在cache-refresh线程池里执行,不占用公共的调度线程,上一轮没跑完时跳过本轮
+ * @author king
+ */
+@Slf4j
+@Component
+public class RefreshAheadScheduler {
+
+    private static final String CLAIM_SCRIPT = "cache_refresh_claim";
+
+    private final ScriptRegistry scriptRegistry;
+    private final CacheClient cacheClient;
+    private final RefreshAheadRegistry refreshAheadRegistry;
+    private final CacheProperties.RefreshAhead config;
+    private final ExecutorService refreshExecutor;
+
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    /**
+     * 当前这一秒和这一秒已经刷新的个数,同一时间只有一轮刷新在访问
+     */
+    private long currentSecond;
+    private int refreshedInSecond;
+
+    public RefreshAheadScheduler(ScriptRegistry scriptRegistry, CacheClient cacheClient,
+                                 RefreshAheadRegistry refreshAheadRegistry, CacheProperties cacheProperties,
+                                 ExecutorRegistry executorRegistry) {
+        this.scriptRegistry = scriptRegistry;
+        this.cacheClient = cacheClient;
+        this.refreshAheadRegistry = refreshAheadRegistry;
+        this.config = cacheProperties.getRefreshAhead();
+        this.refreshExecutor = executorRegistry.executor(ExecutorRegistry.CACHE_REFRESH);
+    }
+
+    @Scheduled(fixedDelayString = "#{@cacheProperties.refreshAhead.interval.toMillis()}")
+    public void refresh() {
+        if (!config.isEnabled() || !running.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    for (RefreshAheadRegistry.Spec<?, ?> spec : refreshAheadRegistry.specs()) {
+                        try {
+                            refresh(spec);
+                        } catch (Exception e) {
+                            log.error("提前刷新缓存[{}]失败", spec.getKeyPrefix(), e);
+                        }
+                    }
+                } finally {
+                    running.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            running.set(false);
+            log.warn("提前刷新线程池已满, 跳过本轮");
+        }
+    }
+
+    private <ID, R> void refresh(RefreshAheadRegistry.Spec<ID, R> spec) {
+        int total = 0;
+        while (true) {
+            //1.这一秒的额度用完了,留到下一次
+            int limit = Math.min(config.getBatchSize(), remainingBudget());
+            if (limit <= 0) {
+                break;
+            }
+            //2.领取一批快要过期的id
+            List<String> members = claim(spec, limit);
+            if (members.isEmpty()) {
+                break;
+            }
+            refreshedInSecond += members.size();
+            List<ID> ids = new ArrayList<>(members.size());
+            for (String member : members) {
+                ids.add(spec.getIdParser().apply(member));
+            }
+            //3.查库并写回
+            total += cacheClient.refreshLogicalBatch(spec, ids);
+            if (members.size() < limit) {
+                break;
+            }
+        }
+        if (total > 0) {
+            log.debug("提前刷新缓存[{}] {}条", spec.getKeyPrefix(), total);
+        }
+    }
+
+    private int remainingBudget() {
+        long second = System.currentTimeMillis() / 1000;
+        if (second != currentSecond) {
+            currentSecond = second;
+            refreshedInSecond = 0;
+        }
+        return config.getMaxPerSecond() - refreshedInSecond;
+    }
+
+    private List<String> claim(RefreshAheadRegistry.Spec<?, ?> spec, int limit) {
+        long now = System.currentTimeMillis();
+        long due = now + config.getLead().toMillis();
+        //领取后分数推到领取超时之后,超时没刷新完的会重新变成到期
+        long claimedUntil = due + config.getClaimTimeout().toMillis();
+        List<byte[]> raws = scriptRegistry.execute(CLAIM_SCRIPT, ReturnType.MULTI,
+                Collections.singletonList(spec.getRefreshKey()), due, limit, claimedUntil);
+        if (raws == null) {
+            return Collections.emptyList();
+        }
+        List<String> members = new ArrayList<>(raws.size());
+        for (byte[] raw : raws) {
+            members.add(new String(raw, StandardCharsets.UTF_8));
+        }
+        return members;
+    }
+}
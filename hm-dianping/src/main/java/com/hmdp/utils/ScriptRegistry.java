@@ -0,0 +1,237 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.ReactiveRedisTemplate;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DigestUtils;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * lua脚本统一管理.
+ * 启动时扫描 resources/lua/*.lua,用SCRIPT LOAD预加载到redis,之后只用EVALSHA按sha1调用,脚本内容不再随请求发送;
+ * redis重启、主从切换后返回NOSCRIPT时重新加载一次再调用.
+ * 每个脚本发布 redis.script.latency{script,mode} 耗时和 redis.script.errors{script} 失败次数,
+ * pipeline里的调用按整个pipeline计时(mode=pipeline)
+ * @author king
+ */
+@Slf4j
+@Component
+public class ScriptRegistry {
+
+    private static final String LOCATION = "classpath*:lua/*.lua";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final ReactiveRedisTemplate<String, byte[]> reactiveCacheRedisTemplate;
+    private final MeterRegistry meterRegistry;
+    private final Counter reloads;
+
+    /**
+     * 脚本名(文件名去掉.lua) -> 脚本
+     */
+    private final Map<String, Script> scripts = new HashMap<>();
+
+    public ScriptRegistry(StringRedisTemplate stringRedisTemplate,
+                          ReactiveRedisTemplate<String, byte[]> reactiveCacheRedisTemplate,
+                          MeterRegistry meterRegistry) throws IOException {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.reactiveCacheRedisTemplate = reactiveCacheRedisTemplate;
+        this.meterRegistry = meterRegistry;
+        this.reloads = Counter.builder("redis.script.reloads").register(meterRegistry);
+        for (Resource resource : new PathMatchingResourcePatternResolver().getResources(LOCATION)) {
+            String filename = resource.getFilename();
+            if (filename == null) {
+                continue;
+            }
+            String name = filename.substring(0, filename.length() - ".lua".length());
+            try (InputStream in = resource.getInputStream()) {
+                scripts.put(name, new Script(name, StreamUtils.copyToByteArray(in)));
+            }
+        }
+    }
+
+    /**
+     * 预加载失败(redis还没起来)不影响启动,第一次调用返回NOSCRIPT时会再加载
+     */
+    @PostConstruct
+    private void init() {
+        try {
+            load();
+            log.info("预加载lua脚本{}个: {}", scripts.size(), scripts.keySet());
+        } catch (Exception e) {
+            log.warn("预加载lua脚本失败, 首次调用时再加载", e);
+        }
+    }
+
+    /**
+     * SCRIPT LOAD 所有脚本,一个pipeline完成
+     */
+    public void load() {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Script script : scripts.values()) {
+                connection.scriptingCommands().scriptLoad(script.body);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 按sha1执行脚本
+     *
+     * @param args 参数,byte[]原样传递,其它类型转成字符串
+     */
+    public <T> T execute(String name, ReturnType returnType, List<String> keys, Object... args) {
+        Script script = script(name);
+        byte[][] keysAndArgs = keysAndArgs(keys, args);
+        return run(script, script.single, () -> stringRedisTemplate.execute((RedisCallback<T>) connection ->
+                connection.scriptingCommands().evalSha(script.sha, returnType, keys.size(), keysAndArgs)));
+    }
+
+    /**
+     * 在pipeline里按sha1执行脚本,整个pipeline需要用 {@link #pipelined} 包起来,NOSCRIPT时整体重试
+     */
+    public void evalSha(RedisConnection connection, String name, ReturnType returnType,
+                        List<String> keys, Object... args) {
+        connection.scriptingCommands().evalSha(script(name).sha, returnType, keys.size(), keysAndArgs(keys, args));
+    }
+
+    /**
+     * 执行一个只包含这个脚本调用的pipeline
+     */
+    public <T> T pipelined(String name, Supplier<T> pipeline) {
+        Script script = script(name);
+        return run(script, script.pipeline, pipeline);
+    }
+
+    public <T> Mono<T> executeAsync(String name, ReturnType returnType, List<String> keys, Object... args) {
+        Script script = script(name);
+        byte[][] keysAndArgs = keysAndArgs(keys, args);
+        //ByteBuffer读取后不能复用,每次调用重新包装
+        Mono<T> call = Mono.defer(() -> reactiveCacheRedisTemplate.<T>createFlux(connection ->
+                connection.scriptingCommands().evalSha(script.sha, returnType, keys.size(), buffers(keysAndArgs)))
+                .next());
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return call
+                    .onErrorResume(ScriptRegistry::isNoScript, e -> loadAsync(script).then(call))
+                    .doOnError(e -> script.errors.increment())
+                    .doFinally(signal -> script.single.record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+        });
+    }
+
+    private Mono<Void> loadAsync(Script script) {
+        log.warn("redis中没有脚本[{}], 重新加载", script.name);
+        reloads.increment();
+        return Flux.fromIterable(scripts.values())
+                .concatMap(s -> reactiveCacheRedisTemplate.createMono(connection ->
+                        connection.scriptingCommands().scriptLoad(ByteBuffer.wrap(s.body))))
+                .then();
+    }
+
+    private <T> T run(Script script, Timer timer, Supplier<T> action) {
+        long start = System.nanoTime();
+        try {
+            try {
+                return action.get();
+            } catch (RuntimeException e) {
+                if (!isNoScript(e)) {
+                    throw e;
+                }
+                log.warn("redis中没有脚本[{}], 重新加载", script.name);
+                reloads.increment();
+                load();
+                return action.get();
+            }
+        } catch (RuntimeException e) {
+            script.errors.increment();
+            throw e;
+        } finally {
+            timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private Script script(String name) {
+        Script script = scripts.get(name);
+        if (script == null) {
+            throw new IllegalArgumentException("没有lua脚本: lua/" + name + ".lua");
+        }
+        return script;
+    }
+
+    private static boolean isNoScript(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && t.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[][] keysAndArgs(List<String> keys, Object[] args) {
+        byte[][] keysAndArgs = new byte[keys.size() + args.length][];
+        int i = 0;
+        for (String key : keys) {
+            keysAndArgs[i++] = key.getBytes(StandardCharsets.UTF_8);
+        }
+        for (Object arg : args) {
+            keysAndArgs[i++] = arg instanceof byte[]
+                    ? (byte[]) arg
+                    : String.valueOf(arg).getBytes(StandardCharsets.UTF_8);
+        }
+        return keysAndArgs;
+    }
+
+    private static ByteBuffer[] buffers(byte[][] keysAndArgs) {
+        ByteBuffer[] buffers = new ByteBuffer[keysAndArgs.length];
+        for (int i = 0; i < keysAndArgs.length; i++) {
+            buffers[i] = ByteBuffer.wrap(keysAndArgs[i]);
+        }
+        return buffers;
+    }
+
+    private class Script {
+        private final String name;
+        private final byte[] body;
+        private final String sha;
+        private final Timer single;
+        private final Timer pipeline;
+        private final Counter errors;
+
+        Script(String name, byte[] body) {
+            this.name = name;
+            this.body = body;
+            //与SCRIPT LOAD返回的sha1一致
+            this.sha = DigestUtils.sha1DigestAsHex(new String(body, StandardCharsets.UTF_8));
+            this.single = timer(name, "single");
+            this.pipeline = timer(name, "pipeline");
+            this.errors = Counter.builder("redis.script.errors").tag("script", name).register(meterRegistry);
+        }
+
+        private Timer timer(String name, String mode) {
+            return Timer.builder("redis.script.latency")
+                    .tags("script", name, "mode", mode)
+                    .register(meterRegistry);
+        }
+    }
+}
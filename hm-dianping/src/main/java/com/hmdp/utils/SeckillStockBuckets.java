@@ -0,0 +1,216 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.HashOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_BUCKETS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAM;
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_STREAMS_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_VOUCHER_KEY;
+
+/**
+ * 秒杀库存分桶.
+ * 超热门的券把库存拆成N个分桶 seckill:stock:{voucherId:i},下单记录同样拆成 seckill:order:{voucherId:i},
+ * 订单消息写入分桶自己的 stream.orders:{voucherId:i},这几个key带相同的hash tag,同一分桶的key在同一个slot,
+ * 脚本只访问声明过的key,不同分桶分散到不同节点;分桶的stream登记在 seckill:streams 里,由消费者逐个读取.
+ * 初始化、补库存等操作每条命令只涉及一个key,集群下不会跨slot.
+ * 用户按id固定落在一个分桶,在这个分桶里判断一人一单,所以去重是精确的;
+ * 这个分桶卖完时,先从其它分桶预扣一件库存,再回到自己的分桶下单,判断为重复下单时把预扣的库存还回去.
+ * 券的开始、结束时间和状态存在hash seckill:voucher:{voucherId:i} 里,每个分桶一份,脚本在同一次调用里判断时间窗口,
+ * 抢购全程不查数据库.
+ * 不分桶(N=1)时key与原来一致
+ * @author king
+ */
+@Component
+public class SeckillStockBuckets {
+
+    private static final String SECKILL_SCRIPT = "seckill";
+    private static final String RESERVE_SCRIPT = "seckill_reserve";
+
+    /**
+     * 下单成功
+     */
+    public static final int OK = 0;
+    /**
+     * 库存不足
+     */
+    public static final int SOLD_OUT = 1;
+    /**
+     * 重复下单
+     */
+    public static final int DUPLICATE = 2;
+    /**
+     * 尚未开始
+     */
+    public static final int NOT_STARTED = 3;
+    /**
+     * 已结束或已下架
+     */
+    public static final int ENDED = 4;
+    /**
+     * redis里没有券信息
+     */
+    public static final int NO_META = 5;
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final ScriptRegistry scriptRegistry;
+
+    /**
+     * 券id -> 分桶数,创建后不再变化;redis里没有记录时不缓存,下次重新读取
+     */
+    private final Map<Long, Integer> bucketCounts = new ConcurrentHashMap<>();
+
+    public SeckillStockBuckets(StringRedisTemplate stringRedisTemplate, ScriptRegistry scriptRegistry) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.scriptRegistry = scriptRegistry;
+    }
+
+    /**
+     * 把库存平均分到各个分桶,除不尽的部分放在前面的分桶;每个分桶单独写,不用跨slot的MSET
+     */
+    public void init(Long voucherId, int stock, int buckets) {
+        int n = Math.max(buckets, 1);
+        for (int i = 0; i < n; i++) {
+            int bucketStock = stock / n + (i < stock % n ? 1 : 0);
+            stringRedisTemplate.opsForValue().set(stockKey(voucherId, i, n), String.valueOf(bucketStock));
+        }
+        registerStreams(voucherId, n);
+        //不分桶也记下来,redis里有记录的券不会再回退成默认值
+        stringRedisTemplate.opsForValue().set(SECKILL_BUCKETS_KEY + voucherId, String.valueOf(n));
+        bucketCounts.put(voucherId, n);
+    }
+
+    /**
+     * 保存券的时间窗口和状态,每个分桶一份;同时重新登记分桶的stream,防止登记丢失后消费者读不到
+     *
+     * @param status 1表示上架,其它值按已下架处理
+     */
+    public void saveMeta(Long voucherId, LocalDateTime beginTime, LocalDateTime endTime, int status) {
+        int n = bucketCount(voucherId);
+        Map<String, String> meta = new HashMap<>(4);
+        meta.put("beginTime", String.valueOf(toEpochMilli(beginTime)));
+        meta.put("endTime", String.valueOf(toEpochMilli(endTime)));
+        meta.put("status", String.valueOf(status));
+        HashOperations<String, String, String> hashOps = stringRedisTemplate.opsForHash();
+        for (int i = 0; i < n; i++) {
+            hashOps.putAll(metaKey(voucherId, i, n), meta);
+        }
+        registerStreams(voucherId, n);
+    }
+
+    /**
+     * 补库存,按init同样的方式分到各个分桶
+     */
+    public void restock(Long voucherId, int quantity) {
+        int n = bucketCount(voucherId);
+        for (int i = 0; i < n; i++) {
+            int bucketQuantity = quantity / n + (i < quantity % n ? 1 : 0);
+            if (bucketQuantity > 0) {
+                stringRedisTemplate.opsForValue().increment(stockKey(voucherId, i, n), bucketQuantity);
+            }
+        }
+    }
+
+    /**
+     * 抢购一件
+     *
+     * @return OK, SOLD_OUT, DUPLICATE, NOT_STARTED, ENDED 或 NO_META
+     */
+    public int purchase(Long voucherId, Long userId, long orderId) {
+        int n = bucketCount(voucherId);
+        //1.在用户所在的分桶里下单
+        int home = Math.floorMod(userId.hashCode(), n);
+        int r = seckill(voucherId, home, n, userId, orderId, false);
+        if (r != SOLD_OUT || n == 1) {
+            return r;
+        }
+        //2.用户所在的分桶卖完了,依次向其它分桶借一件
+        for (int k = 1; k < n; k++) {
+            int bucket = (home + k) % n;
+            Long reserved = scriptRegistry.execute(RESERVE_SCRIPT, ReturnType.INTEGER,
+                    Collections.singletonList(stockKey(voucherId, bucket, n)));
+            if (reserved == null) {
+                throw new IllegalStateException("预扣库存脚本没有返回结果, voucherId=" + voucherId);
+            }
+            if (reserved != 1L) {
+                continue;
+            }
+            //3.借到了,回到自己的分桶判断一人一单并下单
+            r = seckill(voucherId, home, n, userId, orderId, true);
+            if (r != OK) {
+                //重复下单,把借的库存还回去
+                stringRedisTemplate.opsForValue().increment(stockKey(voucherId, bucket, n));
+            }
+            return r;
+        }
+        return SOLD_OUT;
+    }
+
+    private int seckill(Long voucherId, int bucket, int n, Long userId, long orderId, boolean reserved) {
+        List<String> keys = Arrays.asList(stockKey(voucherId, bucket, n), orderKey(voucherId, bucket, n),
+                metaKey(voucherId, bucket, n), streamKey(voucherId, bucket, n));
+        Long result = scriptRegistry.execute(SECKILL_SCRIPT, ReturnType.INTEGER, keys,
+                voucherId, userId, orderId, reserved ? "1" : "0");
+        if (result == null) {
+            //不能当作库存不足,否则会把券标记为售罄并通知所有实例
+            throw new IllegalStateException("秒杀脚本没有返回结果, voucherId=" + voucherId);
+        }
+        return result.intValue();
+    }
+
+    private int bucketCount(Long voucherId) {
+        //返回null时computeIfAbsent不会缓存
+        Integer n = bucketCounts.computeIfAbsent(voucherId, id -> {
+            String value = stringRedisTemplate.opsForValue().get(SECKILL_BUCKETS_KEY + id);
+            return value == null ? null : Integer.valueOf(value);
+        });
+        return n == null ? 1 : n;
+    }
+
+    /**
+     * 分桶的stream登记到 seckill:streams,不分桶的券使用 stream.orders,消费者总会读取
+     */
+    private void registerStreams(Long voucherId, int n) {
+        if (n == 1) {
+            return;
+        }
+        String[] streams = new String[n];
+        for (int i = 0; i < n; i++) {
+            streams[i] = streamKey(voucherId, i, n);
+        }
+        stringRedisTemplate.opsForSet().add(SECKILL_ORDER_STREAMS_KEY, streams);
+    }
+
+    private static String stockKey(Long voucherId, int bucket, int n) {
+        return n == 1 ? SECKILL_STOCK_KEY + voucherId : SECKILL_STOCK_KEY + "{" + voucherId + ":" + bucket + "}";
+    }
+
+    private static String metaKey(Long voucherId, int bucket, int n) {
+        return n == 1 ? SECKILL_VOUCHER_KEY + voucherId : SECKILL_VOUCHER_KEY + "{" + voucherId + ":" + bucket + "}";
+    }
+
+    private static long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static String orderKey(Long voucherId, int bucket, int n) {
+        return n == 1 ? SECKILL_ORDER_KEY + voucherId : SECKILL_ORDER_KEY + "{" + voucherId + ":" + bucket + "}";
+    }
+
+    private static String streamKey(Long voucherId, int bucket, int n) {
+        return n == 1 ? SECKILL_ORDER_STREAM : SECKILL_ORDER_STREAM + ":{" + voucherId + ":" + bucket + "}";
+    }
+}
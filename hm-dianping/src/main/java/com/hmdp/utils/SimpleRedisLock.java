@@ -1,8 +1,7 @@
 package com.hmdp.utils;
 
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.ReturnType;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 
 
 import java.sql.Time;
@@ -17,19 +16,16 @@ public class SimpleRedisLock implements ILock{
 
     private String name;
     private StringRedisTemplate stringRedisTemplate;
-    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate) {
+    private ScriptRegistry scriptRegistry;
+    public SimpleRedisLock(String name, StringRedisTemplate stringRedisTemplate, ScriptRegistry scriptRegistry) {
         this.name = name;
         this.stringRedisTemplate = stringRedisTemplate;
+        this.scriptRegistry = scriptRegistry;
     }
 
     private static final String KEY_PREFIX = "lock:";
     private static final String ID_PREFIX = UUID.randomUUID().toString()+"-";
-    private static final DefaultRedisScript<Long> UNLOCK_SCRIPT;
-    static {
-        UNLOCK_SCRIPT = new DefaultRedisScript<Long>();
-        UNLOCK_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
-        UNLOCK_SCRIPT.setResultType(Long.class);
-    }
+    private static final String UNLOCK_SCRIPT = "unlock";
 
 
     @Override
@@ -61,8 +57,9 @@ public class SimpleRedisLock implements ILock{
     @Override
     public void unlock() {
         //调用lua脚本
-        stringRedisTemplate.execute(
+        scriptRegistry.execute(
                 UNLOCK_SCRIPT,
+                ReturnType.INTEGER,
                 Collections.singletonList(KEY_PREFIX + name),
                 ID_PREFIX + Thread.currentThread().getId()
         );
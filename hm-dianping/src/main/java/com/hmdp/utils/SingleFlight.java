@@ -0,0 +1,164 @@
+package com.hmdp.utils;
+
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+/**
+ * 本JVM内的请求合并:同一个key同时只有一个线程真正去加载,
+ * 其它线程挂在同一个future上等结果,不轮询也不递归.
+ * 后台刷新(submitIfAbsent/submitAsyncIfAbsent)单独去重,不产生结果,
+ * 取值的调用不会挂到后台刷新上拿到它的null
+ * @author king
+ */
+@Component
+public class SingleFlight {
+
+    private final ConcurrentMap<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * 正在执行的后台刷新,与取值的调用分开
+     */
+    private final ConcurrentMap<String, CompletableFuture<Object>> background = new ConcurrentHashMap<>();
+
+    /**
+     * 同步执行,并发调用只有第一个会执行loader,其余等待它的结果
+     *
+     * @param key    合并的key
+     * @param loader 加载逻辑
+     * @return loader的结果
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Supplier<T> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            //已经有线程在加载,等它的结果
+            try {
+                return (T) existing.join();
+            } catch (CompletionException e) {
+                throw unwrap(e);
+            }
+        }
+        try {
+            T result = loader.get();
+            future.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * 异步执行,这个key已经在执行时直接返回false,保证同一个key不会被同时重建两次
+     *
+     * @param key      合并的key
+     * @param executor 执行任务的线程池
+     * @param task     任务
+     * @return 是否提交了新任务
+     */
+    public boolean submitIfAbsent(String key, Executor executor, Runnable task) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        if (background.putIfAbsent(key, future) != null) {
+            return false;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                    future.complete(null);
+                } catch (RuntimeException | Error e) {
+                    future.completeExceptionally(e);
+                    throw e;
+                } finally {
+                    background.remove(key, future);
+                }
+            });
+        } catch (RuntimeException e) {
+            //提交失败(例如线程池拒绝),让出位置
+            background.remove(key, future);
+            future.completeExceptionally(e);
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * 异步的后台刷新,这个key已经在刷新时直接返回false,结果被丢弃
+     *
+     * @param key  合并的key
+     * @param task 返回future的刷新逻辑
+     * @return 是否启动了新的刷新
+     */
+    public boolean submitAsyncIfAbsent(String key, Supplier<? extends CompletableFuture<?>> task) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        if (background.putIfAbsent(key, future) != null) {
+            return false;
+        }
+        try {
+            task.get().whenComplete((result, e) -> {
+                background.remove(key, future);
+                if (e != null) {
+                    future.completeExceptionally(e);
+                } else {
+                    future.complete(null);
+                }
+            });
+        } catch (RuntimeException e) {
+            background.remove(key, future);
+            future.completeExceptionally(e);
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * 异步版本,并发调用只有第一个会执行loader,其余拿到同一个结果;不阻塞调用线程
+     *
+     * @param key    合并的key
+     * @param loader 返回future的加载逻辑
+     * @return 结果的future
+     */
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> executeAsync(String key, Supplier<CompletableFuture<T>> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            //返回一个新的future,调用方complete它不会影响其它等待者
+            return existing.thenApply(v -> (T) v);
+        }
+        try {
+            loader.get().whenComplete((result, e) -> {
+                inFlight.remove(key, future);
+                if (e != null) {
+                    future.completeExceptionally(e);
+                } else {
+                    future.complete(result);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(key, future);
+            future.completeExceptionally(e);
+        }
+        return future.thenApply(v -> (T) v);
+    }
+
+    private static RuntimeException unwrap(CompletionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+            return (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return e;
+    }
+}
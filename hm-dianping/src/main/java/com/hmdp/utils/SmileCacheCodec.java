@@ -0,0 +1,70 @@
+package com.hmdp.utils;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+
+/**
+ * 二进制格式(jackson smile):字段名可回引、数字和时间按二进制存,比JSON字符串更小,
+ * 逻辑过期数据按 RedisData&lt;T&gt; 一次解码到目标类型.
+ * smile数据固定以 ":)\n" 开头,可以和旧的JSON数据区分开
+ * @author king
+ */
+@Component
+public class SmileCacheCodec implements CacheCodec {
+
+    public static final String NAME = "binary";
+
+    private final ObjectMapper mapper = new ObjectMapper(new SmileFactory())
+            .registerModule(new JavaTimeModule())
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+            .enable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS)
+            .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public boolean supports(byte[] bytes) {
+        return bytes.length >= 3 && bytes[0] == ':' && bytes[1] == ')' && bytes[2] == '\n';
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        try {
+            return mapper.writeValueAsBytes(value);
+        } catch (IOException e) {
+            throw new IllegalStateException("缓存编码失败", e);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Type type) {
+        try {
+            return mapper.readValue(bytes, mapper.getTypeFactory().constructType(type));
+        } catch (IOException e) {
+            throw new IllegalStateException("缓存解码失败", e);
+        }
+    }
+
+    @Override
+    public <T> RedisData<T> decodeLogical(byte[] bytes, Type type) {
+        JavaType javaType = mapper.getTypeFactory().constructParametricType(RedisData.class,
+                mapper.getTypeFactory().constructType(type));
+        try {
+            return mapper.readValue(bytes, javaType);
+        } catch (IOException e) {
+            throw new IllegalStateException("缓存解码失败", e);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.SeckillProperties;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 本实例记住已经卖完的秒杀券,之后的抢购请求直接在内存里拒绝,不再查库、生成订单id、执行lua脚本.
+ * 脚本返回库存不足时标记,并通过 seckill:soldout 频道通知其它实例;补库存时清除标记并通知.
+ * pub/sub消息可能丢失,标记在soldOutRecheck之后失效,下一个请求重新走一次脚本确认
+ * @author king
+ */
+@Slf4j
+@Component
+public class SoldOutRegistry implements MessageListener {
+
+    private static final String SOLD_OUT = "S";
+    private static final String RESTOCKED = "R";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final SeckillProperties seckillProperties;
+
+    /**
+     * 券id -> 标记时间
+     */
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    public SoldOutRegistry(StringRedisTemplate stringRedisTemplate, SeckillProperties seckillProperties) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.seckillProperties = seckillProperties;
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        Long markedAt = soldOut.get(voucherId);
+        if (markedAt == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - markedAt > seckillProperties.getSoldOutRecheck().toMillis()) {
+            soldOut.remove(voucherId, markedAt);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 标记卖完并通知其它实例,已经标记过的不再重复通知
+     */
+    public void markSoldOut(Long voucherId) {
+        if (soldOut.put(voucherId, System.currentTimeMillis()) == null) {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, SOLD_OUT + "|" + voucherId);
+        }
+    }
+
+    /**
+     * 补库存后清除标记并通知其它实例
+     */
+    public void reset(Long voucherId) {
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, RESTOCKED + "|" + voucherId);
+    }
+
+    /**
+     * 消息格式 S|券id 或 R|券id
+     */
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int idx = body.indexOf('|');
+        if (idx < 0) {
+            log.warn("无法识别的售罄消息:{}", body);
+            return;
+        }
+        Long voucherId = Long.valueOf(body.substring(idx + 1));
+        if (SOLD_OUT.equals(body.substring(0, idx))) {
+            soldOut.putIfAbsent(voucherId, System.currentTimeMillis());
+        } else {
+            soldOut.remove(voucherId);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+---
+--- Created by king.
+---
+--- 带版本号的缓存写入:重建开始前读到的版本号比当前版本号旧时放弃写入,
+--- 防止慢的重建把更新前查到的旧数据写回缓存
+-- 1.参数列表
+-- 1.1 缓存key
+local key = KEYS[1]
+-- 1.2 版本号key
+local versionKey = KEYS[2]
+-- 1.3 提前刷新的zset,可选,逻辑过期数据写入成功后记录过期时间
+local refreshKey = KEYS[3]
+-- 1.4 重建开始前读到的版本号
+local version = tonumber(ARGV[1])
+-- 1.5 缓存值
+local value = ARGV[2]
+-- 1.6 过期秒数,0表示不过期
+local seconds = tonumber(ARGV[3])
+
+-- 2.判断版本号,期间数据被更新过(版本号已经增加)则放弃写入
+local current = tonumber(redis.call('get', versionKey) or '0')
+if (current > version) then
+    return 0
+end
+-- 3.写入缓存
+if (seconds > 0) then
+    redis.call('set', key, value, 'EX', seconds)
+else
+    redis.call('set', key, value)
+end
+-- 4.记录逻辑过期时间(ARGV[4])和id(ARGV[5])
+if (refreshKey) then
+    redis.call('zadd', refreshKey, ARGV[4], ARGV[5])
+end
+return 1
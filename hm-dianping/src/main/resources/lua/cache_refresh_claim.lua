@@ -0,0 +1,11 @@
+---
+--- Created by king.
+---
+--- 领取一批即将过期的key:取出过期时间早于ARGV[1]的前ARGV[2]个id,
+--- 把它们的分数推到ARGV[3],其它实例就不会重复领取;
+--- 刷新成功后分数被更新为新的过期时间,刷新失败的在领取超时后重新可见
+local ids = redis.call('zrangebyscore', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, ARGV[2])
+for i, id in ipairs(ids) do
+    redis.call('zadd', KEYS[1], ARGV[3], id)
+end
+return ids
@@ -0,0 +1,64 @@
+---
+--- Generated by EmmyLua(https://github.com/EmmyLua)
+--- Created by king.
+--- DateTime: 2022/8/13 21:47
+---
+-- 1.参数列表
+-- 1.1优惠券id
+local voucherId = ARGV[1]
+-- 1.2用户id
+local userId = ARGV[2]
+-- 1.3 订单id
+local orderId = ARGV[3]
+-- 1.4 库存是否已经从其它分桶预扣,'1'表示已预扣,这里不再扣库存
+local reserved = ARGV[4]
+-- 2.数据key,分桶时为用户所在分桶的库存、订单和券信息key
+-- 2.1库存key
+local stockKey = KEYS[1]
+-- 2.2订单key
+local orderKey = KEYS[2]
+-- 2.3券信息key,hash: beginTime endTime(毫秒时间戳) status
+local metaKey = KEYS[3]
+-- 2.4订单消息队列key,分桶时与上面的key带相同的hash tag
+local streamKey = KEYS[4]
+
+-- 3.脚本业务
+-- 3.1 判断秒杀时间和状态 HMGET metaKey beginTime endTime status
+local meta = redis.call('hmget',metaKey,'beginTime','endTime','status')
+if (not meta[1]) then
+    -- 没有券信息,返回5,由调用方补上后重试
+    return 5
+end
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if (now < tonumber(meta[1])) then
+    -- 尚未开始,返回3
+    return 3
+end
+if (now > tonumber(meta[2]) or meta[3] ~= '1') then
+    -- 已结束或已下架,返回4
+    return 4
+end
+
+-- 3.2 判断用户是否下单 SISMEMBER orderKey userId
+if (redis.call('sismember',orderKey,userId) == 1) then
+    -- 3.3 存在,说明是重复下单,返回2
+    return 2
+end
+
+if (reserved ~= '1') then
+    -- 3.3 判断库存是否充足
+    if (tonumber(redis.call('get',stockKey) or '0') <= 0) then
+        -- 3.4 库存不足,返回1
+        return 1
+    end
+    -- 3.5 扣库存 incrby stockKey -1
+    redis.call('incrby',stockKey,-1)
+end
+
+-- 3.6 下单(保存用户id到set中) sadd orderKey userId
+redis.call('sadd',orderKey,userId)
+
+-- 3.7 发送消息到队列中 xadd streamKey * k1 v1 k2 v2
+redis.call('xadd',streamKey,'*','userId',userId,'voucherId',voucherId,'id',orderId);
+return 0
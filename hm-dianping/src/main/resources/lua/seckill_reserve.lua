@@ -0,0 +1,8 @@
+-- 从一个库存分桶预扣一件库存,用户所在分桶卖完时向其它分桶借
+-- KEYS[1] 分桶的库存key
+-- 返回1表示预扣成功,0表示这个分桶也卖完了
+if (tonumber(redis.call('get', KEYS[1]) or '0') <= 0) then
+    return 0
+end
+redis.call('incrby', KEYS[1], -1)
+return 1
@@ -0,0 +1,50 @@
+package com.hmdp.service.impl;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.redis.connection.stream.RecordId;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class VoucherOrderConsumerTest {
+
+    private static final Duration MIN_IDLE = Duration.ofSeconds(30);
+    private static final Duration MAX_IDLE = Duration.ofMinutes(10);
+
+    @Test
+    void backoffDoublesPerDelivery() {
+        assertEquals(Duration.ofSeconds(30), VoucherOrderConsumer.backoff(1, MIN_IDLE, MAX_IDLE));
+        assertEquals(Duration.ofSeconds(60), VoucherOrderConsumer.backoff(2, MIN_IDLE, MAX_IDLE));
+        assertEquals(Duration.ofSeconds(120), VoucherOrderConsumer.backoff(3, MIN_IDLE, MAX_IDLE));
+        assertEquals(Duration.ofSeconds(480), VoucherOrderConsumer.backoff(5, MIN_IDLE, MAX_IDLE));
+    }
+
+    @Test
+    void backoffIsCapped() {
+        assertEquals(MAX_IDLE, VoucherOrderConsumer.backoff(6, MIN_IDLE, MAX_IDLE));
+        //投递次数很大时不溢出
+        assertEquals(MAX_IDLE, VoucherOrderConsumer.backoff(Long.MAX_VALUE, MIN_IDLE, MAX_IDLE));
+    }
+
+    @Test
+    void backoffForUndeliveredEntryIsMinIdle() {
+        assertEquals(MIN_IDLE, VoucherOrderConsumer.backoff(0, MIN_IDLE, MAX_IDLE));
+    }
+
+    @Test
+    void deadLetterAfterMaxDeliveries() {
+        assertFalse(VoucherOrderConsumer.exhausted(1, 5));
+        assertFalse(VoucherOrderConsumer.exhausted(4, 5));
+        assertTrue(VoucherOrderConsumer.exhausted(5, 5));
+        assertTrue(VoucherOrderConsumer.exhausted(6, 5));
+    }
+
+    @Test
+    void reclaimCursorStartsAfterLastSeenId() {
+        assertEquals("1700000000000-1", VoucherOrderConsumer.next(RecordId.of("1700000000000-0")).getValue());
+        assertEquals("1700000000000-8", VoucherOrderConsumer.next(RecordId.of("1700000000000-7")).getValue());
+    }
+}
@@ -0,0 +1,100 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.TypeReference;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.config.CacheProperties;
+import com.hmdp.entity.Shop;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CacheCodecsTest {
+
+    private static final String PREFIX = "cache:shop:";
+
+    @Test
+    void writesWithConfiguredCodec() {
+        CacheCodecs codecs = codecs(SmileCacheCodec.NAME, false);
+        byte[] bytes = codecs.encode(PREFIX, shop(1L));
+        assertTrue(new SmileCacheCodec().supports(bytes));
+        Shop decoded = codecs.decode(PREFIX, bytes, Shop.class);
+        assertEquals("101茶餐厅", decoded.getName());
+        assertEquals(Long.valueOf(1L), decoded.getId());
+    }
+
+    @Test
+    void readsOldJsonAfterSwitchingToSmile() {
+        //切换前用hutool写入的JSON
+        byte[] json = JSONUtil.toJsonStr(shop(2L)).getBytes(StandardCharsets.UTF_8);
+        CacheCodecs codecs = codecs(SmileCacheCodec.NAME, false);
+        Shop decoded = codecs.decode(PREFIX, json, Shop.class);
+        assertEquals(Long.valueOf(2L), decoded.getId());
+        assertEquals("大关", decoded.getArea());
+    }
+
+    @Test
+    void readsOldJsonLogicalData() {
+        LocalDateTime expireTime = LocalDateTime.now().plusMinutes(30).truncatedTo(ChronoUnit.SECONDS);
+        RedisData<Object> redisData = new RedisData<>();
+        redisData.setExpireTime(expireTime);
+        redisData.setData(shop(3L));
+        byte[] json = JSONUtil.toJsonStr(redisData).getBytes(StandardCharsets.UTF_8);
+
+        CacheCodecs codecs = codecs(SmileCacheCodec.NAME, false);
+        RedisData<Shop> decoded = codecs.decodeLogical(PREFIX, json, Shop.class);
+        assertEquals(expireTime, decoded.getExpireTime());
+        assertEquals(Long.valueOf(3L), decoded.getData().getId());
+    }
+
+    @Test
+    void smileLogicalDataKeepsGenericType() {
+        RedisData<Object> redisData = new RedisData<>();
+        redisData.setExpireTime(LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS));
+        redisData.setData(Arrays.asList(shop(4L), shop(5L)));
+        CacheCodecs codecs = codecs(SmileCacheCodec.NAME, true);
+        byte[] bytes = codecs.encode(PREFIX, redisData);
+
+        RedisData<List<Shop>> decoded = codecs.decodeLogical(PREFIX, bytes, new TypeReference<List<Shop>>() {
+        }.getType());
+        assertEquals(redisData.getExpireTime(), decoded.getExpireTime());
+        assertEquals(Long.valueOf(5L), decoded.getData().get(1).getId());
+    }
+
+    @Test
+    void readsSmileAfterSwitchingBackToJson() {
+        byte[] smile = codecs(SmileCacheCodec.NAME, true).encode(PREFIX, shop(6L));
+        Shop decoded = codecs(JsonCacheCodec.NAME, false).decode(PREFIX, smile, Shop.class);
+        assertEquals(Long.valueOf(6L), decoded.getId());
+    }
+
+    @Test
+    void rejectsUnknownFormatAndCodec() {
+        CacheCodecs codecs = codecs(SmileCacheCodec.NAME, false);
+        assertThrows(IllegalStateException.class,
+                () -> codecs.decode(PREFIX, "plain".getBytes(StandardCharsets.UTF_8), Shop.class));
+        assertThrows(IllegalStateException.class, () -> codecs("protobuf", false));
+    }
+
+    private static CacheCodecs codecs(String name, boolean compression) {
+        CacheProperties cacheProperties = new CacheProperties();
+        cacheProperties.setCodec(name);
+        cacheProperties.getCompression().setEnabled(compression);
+        cacheProperties.getCompression().setMinSize(64);
+        CacheCompressor compressor = new CacheCompressor(cacheProperties, new CacheMetrics(new SimpleMeterRegistry()));
+        return new CacheCodecs(Arrays.asList(new JsonCacheCodec(), new SmileCacheCodec()), cacheProperties, compressor);
+    }
+
+    private static Shop shop(Long id) {
+        return new Shop().setId(id).setName("101茶餐厅").setArea("大关").setAvgPrice(80L).setScore(37)
+                .setX(120.149192).setY(30.316078);
+    }
+}
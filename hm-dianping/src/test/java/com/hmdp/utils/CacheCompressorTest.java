@@ -0,0 +1,84 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CacheCompressorTest {
+
+    private static final String PREFIX = "cache:shop:";
+
+    private CacheProperties cacheProperties;
+    private CacheCompressor compressor;
+
+    @BeforeEach
+    void setUp() {
+        cacheProperties = new CacheProperties();
+        cacheProperties.getCompression().setEnabled(true);
+        cacheProperties.getCompression().setMinSize(1024);
+        compressor = new CacheCompressor(cacheProperties, new CacheMetrics(new SimpleMeterRegistry()));
+    }
+
+    @Test
+    void roundTrip() {
+        byte[] raw = repeat("{\"name\":\"101茶餐厅\",\"area\":\"大关\"}", 100);
+        byte[] stored = compressor.compress(PREFIX, raw);
+        assertTrue(stored.length < raw.length);
+        assertEquals(0x01, stored[0]);
+        assertArrayEquals(raw, compressor.decompress(PREFIX, stored));
+    }
+
+    @Test
+    void smallValuesAreNotCompressed() {
+        byte[] raw = repeat("a", 1023);
+        assertSame(raw, compressor.compress(PREFIX, raw));
+        byte[] atThreshold = repeat("a", 1024);
+        assertEquals(0x01, compressor.compress(PREFIX, atThreshold)[0]);
+    }
+
+    @Test
+    void incompressibleValuesAreStoredAsIs() {
+        byte[] raw = new byte[4096];
+        ThreadLocalRandom.current().nextBytes(raw);
+        raw[0] = '{';
+        assertSame(raw, compressor.compress(PREFIX, raw));
+    }
+
+    @Test
+    void disabledStillReadsCompressedData() {
+        byte[] raw = repeat("{\"id\":1}", 500);
+        byte[] stored = compressor.compress(PREFIX, raw);
+        cacheProperties.getCompression().setEnabled(false);
+        CacheCompressor disabled = new CacheCompressor(cacheProperties, new CacheMetrics(new SimpleMeterRegistry()));
+        assertSame(raw, disabled.compress(PREFIX, raw));
+        assertArrayEquals(raw, disabled.decompress(PREFIX, stored));
+    }
+
+    @Test
+    void uncompressedDataIsDetectedByFirstByte() {
+        //json和smile的首字节都不是0x01
+        byte[] json = "{\"id\":1}".getBytes(StandardCharsets.UTF_8);
+        assertSame(json, compressor.decompress(PREFIX, json));
+        byte[] smile = new SmileCacheCodec().encode("x");
+        assertSame(smile, compressor.decompress(PREFIX, smile));
+        byte[] empty = new byte[0];
+        assertSame(empty, compressor.decompress(PREFIX, empty));
+    }
+
+    private static byte[] repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,73 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CacheTtlPolicyTest {
+
+    private static final String PREFIX = "cache:shop:";
+
+    @Test
+    void keysWithoutPolicyUseBaseTtl() {
+        CacheTtlPolicy policy = policy(0.1, 0);
+        assertEquals(1800, policy.resolveSeconds("cache:blog:1", 30, TimeUnit.MINUTES));
+        //不足一秒按一秒
+        assertEquals(1, policy.resolveSeconds("cache:blog:1", 10, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void jitterStaysInRange() {
+        CacheTtlPolicy policy = policy(0.1, 0);
+        Set<Long> seen = new HashSet<>();
+        for (int i = 0; i < 2000; i++) {
+            long ttl = policy.resolveSeconds(PREFIX + i, 30, TimeUnit.MINUTES);
+            assertTrue(ttl >= 1620 && ttl <= 1980, "ttl=" + ttl);
+            seen.add(ttl);
+        }
+        //确实打散了
+        assertTrue(seen.size() > 100);
+    }
+
+    @Test
+    void expiriesAreSpreadAcrossSeconds() {
+        Map<Long, Integer> perSecond = null;
+        //统计期间跨秒时基准时间变了,重试
+        for (int attempt = 0; attempt < 3 && perSecond == null; attempt++) {
+            CacheTtlPolicy policy = policy(0, 10);
+            long before = System.currentTimeMillis() / 1000;
+            Map<Long, Integer> counts = new TreeMap<>();
+            for (int i = 0; i < 35; i++) {
+                counts.merge(policy.resolveSeconds(PREFIX + i, 60, TimeUnit.SECONDS), 1, Integer::sum);
+            }
+            if (System.currentTimeMillis() / 1000 == before) {
+                perSecond = counts;
+            }
+        }
+        assertEquals(Integer.valueOf(10), perSecond.get(60L));
+        assertEquals(Integer.valueOf(10), perSecond.get(61L));
+        assertEquals(Integer.valueOf(10), perSecond.get(62L));
+        assertEquals(Integer.valueOf(5), perSecond.get(63L));
+        assertEquals(4, perSecond.size());
+    }
+
+    private static CacheTtlPolicy policy(double jitter, int maxExpiriesPerSecond) {
+        CacheProperties.TtlPolicy config = new CacheProperties.TtlPolicy();
+        config.setPrefix(PREFIX);
+        config.setJitter(jitter);
+        config.setMaxExpiriesPerSecond(maxExpiriesPerSecond);
+        CacheProperties cacheProperties = new CacheProperties();
+        cacheProperties.setTtlPolicies(Collections.singletonList(config));
+        return new CacheTtlPolicy(cacheProperties, new SimpleMeterRegistry());
+    }
+}
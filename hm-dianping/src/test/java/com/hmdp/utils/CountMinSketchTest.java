@@ -0,0 +1,63 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CountMinSketchTest {
+
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 2048;
+
+    @Test
+    void neverUnderestimates() {
+        CountMinSketch sketch = new CountMinSketch(DEPTH, WIDTH);
+        for (int i = 0; i < 5000; i++) {
+            for (int j = 0; j <= i % 7; j++) {
+                sketch.add("key:" + i);
+            }
+        }
+        for (int i = 0; i < 5000; i++) {
+            assertTrue(sketch.estimate("key:" + i) >= i % 7 + 1);
+        }
+    }
+
+    @Test
+    void errorStaysWithinBound() {
+        CountMinSketch sketch = new CountMinSketch(DEPTH, WIDTH);
+        int keys = 10_000;
+        int perKey = 10;
+        int hot = 5000;
+        for (int i = 0; i < keys; i++) {
+            for (int j = 0; j < perKey; j++) {
+                sketch.add("key:" + i);
+            }
+        }
+        for (int i = 0; i < hot; i++) {
+            sketch.add("hot");
+        }
+        //误差上限 e/width * 总次数,每个key以 1-e^-depth 的概率不超过
+        long total = (long) keys * perKey + hot;
+        double bound = Math.E / WIDTH * total;
+        int within = 0;
+        for (int i = 0; i < keys; i++) {
+            if (sketch.estimate("key:" + i) - perKey <= bound) {
+                within++;
+            }
+        }
+        assertTrue(within >= keys * 0.95, "within bound: " + within);
+        assertTrue(sketch.estimate("hot") - hot <= bound);
+    }
+
+    @Test
+    void addReturnsCurrentEstimate() {
+        CountMinSketch sketch = new CountMinSketch(DEPTH, WIDTH);
+        long last = 0;
+        for (int i = 0; i < 100; i++) {
+            last = sketch.add("k");
+        }
+        assertEquals(sketch.estimate("k"), last);
+        assertEquals(0, new CountMinSketch(DEPTH, WIDTH).estimate("k"));
+    }
+}
@@ -0,0 +1,71 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.CacheProperties;
+import com.hmdp.dto.HotKeyDTO;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 计数按窗口衰减:每个窗口用新的sketch,上个窗口的访问不带到下个窗口
+ */
+class HotKeyDetectorTest {
+
+    private HotKeyDetector detector;
+
+    @BeforeEach
+    void setUp() {
+        CacheProperties cacheProperties = new CacheProperties();
+        cacheProperties.getNear().setEnabled(false);
+        CacheProperties.HotKey hotKey = cacheProperties.getHotKey();
+        hotKey.setEnabled(true);
+        hotKey.setSampleRate(1.0);
+        hotKey.setThreshold(100);
+        hotKey.setTopK(5);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        NearCache nearCache = new NearCache(null, meterRegistry, cacheProperties);
+        detector = new HotKeyDetector(cacheProperties, nearCache, meterRegistry);
+    }
+
+    @Test
+    void detectsKeyOverThreshold() {
+        record("hot", 150);
+        record("warm", 50);
+        assertTrue(detector.isHot("hot"));
+        assertFalse(detector.isHot("warm"));
+
+        detector.rotate();
+        List<HotKeyDTO> top = detector.topK();
+        assertEquals("hot", top.get(0).getKey());
+        assertTrue(top.get(0).getCount() >= 150);
+    }
+
+    @Test
+    void countsDecayAfterWindow() {
+        record("hot", 150);
+        detector.rotate();
+        assertTrue(detector.isHot("hot"));
+
+        //下个窗口访问次数不够,取消热点
+        record("hot", 60);
+        detector.rotate();
+        assertFalse(detector.isHot("hot"));
+        assertEquals(60, detector.topK().get(0).getCount());
+
+        //空窗口之后top-K也清空
+        detector.rotate();
+        assertTrue(detector.topK().isEmpty());
+    }
+
+    private void record(String key, int times) {
+        for (int i = 0; i < times; i++) {
+            detector.record(key);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SingleFlightTest {
+
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    @Test
+    void concurrentCallsShareOneLoad() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            Future<String> first = pool.submit(() -> singleFlight.execute("k", () -> {
+                loads.incrementAndGet();
+                started.countDown();
+                await(release);
+                return "v";
+            }));
+            started.await();
+            List<Future<String>> others = new ArrayList<>();
+            for (int i = 0; i < 7; i++) {
+                others.add(pool.submit(() -> singleFlight.execute("k", () -> {
+                    loads.incrementAndGet();
+                    return "other";
+                })));
+            }
+            //等其它线程都挂到同一个future上
+            Thread.sleep(100);
+            release.countDown();
+            assertEquals("v", first.get(5, TimeUnit.SECONDS));
+            for (Future<String> other : others) {
+                assertEquals("v", other.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, loads.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void failureIsSharedAndNotCached() {
+        assertThrows(IllegalStateException.class, () -> singleFlight.execute("k", () -> {
+            throw new IllegalStateException("boom");
+        }));
+        assertEquals("v", singleFlight.execute("k", () -> "v"));
+    }
+
+    @Test
+    void asyncCallsShareOneLoad() {
+        CompletableFuture<String> load = new CompletableFuture<>();
+        AtomicInteger loads = new AtomicInteger();
+        CompletableFuture<String> a = singleFlight.executeAsync("k", () -> {
+            loads.incrementAndGet();
+            return load;
+        });
+        CompletableFuture<String> b = singleFlight.executeAsync("k", () -> {
+            loads.incrementAndGet();
+            return CompletableFuture.completedFuture("other");
+        });
+        load.complete("v");
+        assertEquals("v", a.join());
+        assertEquals("v", b.join());
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    void valueCallDoesNotJoinBackgroundRefresh() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            //后台刷新抢不到锁,什么都不返回
+            assertTrue(singleFlight.submitIfAbsent("k", pool, () -> await(release)));
+            assertFalse(singleFlight.submitIfAbsent("k", pool, () -> { }));
+            //同一个key的取值调用自己加载,不会拿到后台刷新的null
+            assertEquals("v", singleFlight.execute("k", () -> "v"));
+            assertEquals("v", singleFlight.executeAsync("k", () -> CompletableFuture.completedFuture("v")).join());
+        } finally {
+            release.countDown();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void asyncBackgroundRefreshIsDedupedSeparately() {
+        CompletableFuture<Object> refresh = new CompletableFuture<>();
+        assertTrue(singleFlight.submitAsyncIfAbsent("k", () -> refresh));
+        assertFalse(singleFlight.submitAsyncIfAbsent("k", () -> CompletableFuture.completedFuture(null)));
+        assertEquals("v", singleFlight.executeAsync("k", () -> CompletableFuture.completedFuture("v")).join());
+        refresh.complete(null);
+        assertTrue(singleFlight.submitAsyncIfAbsent("k", () -> CompletableFuture.completedFuture(null)));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}